@@ -1,92 +1,4397 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpServer;
 
-public class KVStore {
+// Thrown when a commit loses a write-write race against a concurrent commit
+class TransactionConflictException extends RuntimeException {
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
+
+// When committed records are forced to disk
+enum FsyncPolicy {
+    EVERY_COMMIT,
+    INTERVAL,
+    NEVER
+}
+
+// Append-only log of committed write sets. Each record holds one commit:
+// [int bodyLength][int crc][long version][int opCount] followed by
+// [byte op][int keyLength][key][int valueLength][value] per write, plus a
+// [long expiresAtMillis] for writes that carry a TTL.
+// Commits append into an in-memory batch; whichever committer flushes first
+// writes the whole batch with one write and one force (group commit).
+// The log is split into segments named after the first version they may
+// hold, so a checkpoint can drop everything it covers by deleting files.
+class WriteAheadLog implements Closeable {
+    private static final byte SET = 1;
+    private static final byte DELETE = 2;
+    private static final byte SET_EXPIRING = 3;
+    private static final int HEADER_BYTES = 8;
+    private static final int READ_BUFFER_BYTES = 1 << 20;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    interface ReplayHandler {
+        // value is null for a delete; expiresAtMillis is 0 for a key without a TTL
+        void apply(long version, String key, String value, long expiresAtMillis);
+    }
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final Object flushLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private final long fsyncIntervalMillis;
+    private ScheduledExecutorService flusher;
+    // Guarded by flushLock
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocateDirect(64 * 1024);
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(64 * 1024);
+    private long appendedPosition;
+    private volatile long durablePosition;
+    // Version of the last record replaySegment read
+    private long replayedVersion;
+
+    WriteAheadLog(Path directory, FsyncPolicy policy, long fsyncIntervalMillis) {
+        this.directory = directory;
+        this.policy = policy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    // Replays every segment in version order, handing records newer than
+    // afterVersion to the handler, and opens the last segment for appends.
+    // Replay stops at the first torn or corrupt record. In the last segment
+    // holding records it is cut off along with any empty segments after it;
+    // anywhere else the records after it would leave a gap in the history,
+    // so startup fails and the files are left as they are.
+    long replay(long afterVersion, ReplayHandler handler) {
+        try {
+            List<Path> segments = segments();
+            int lastWritten = segments.size() - 1;
+            while (lastWritten > 0 && Files.size(segments.get(lastWritten)) == 0) {
+                lastWritten--;
+            }
+            long lastVersion = afterVersion;
+            for (int i = 0; i < segments.size(); i++) {
+                try (FileChannel segmentChannel = FileChannel.open(segments.get(i), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    long size = segmentChannel.size();
+                    long validBytes = replaySegment(segmentChannel, afterVersion, handler);
+                    lastVersion = Math.max(lastVersion, replayedVersion);
+                    if (validBytes == size) {
+                        continue;
+                    }
+                    if (i < lastWritten) {
+                        throw new IllegalStateException("Corrupt WAL record at byte " + validBytes + " of " +
+                                segments.get(i) + " is followed by " + segments.get(lastWritten) +
+                                "; replaying past it would skip versions");
+                    }
+                    segmentChannel.truncate(validBytes);
+                }
+                for (Path empty : segments.subList(i + 1, segments.size())) {
+                    Files.delete(empty);
+                }
+                segments = segments.subList(0, i + 1);
+                break;
+            }
+            synchronized (flushLock) {
+                Path active = segments.isEmpty() ? segmentPath(afterVersion + 1) : segments.get(segments.size() - 1);
+                channel = FileChannel.open(active, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            }
+            if (policy == FsyncPolicy.INTERVAL) {
+                flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kvstore-wal-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                flusher.scheduleWithFixedDelay(() -> flush(Long.MAX_VALUE, true), fsyncIntervalMillis,
+                        fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            return lastVersion;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns the length of the segment's intact prefix
+    private long replaySegment(FileChannel segmentChannel, long afterVersion, ReplayHandler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES).flip();
+        byte[] scratch = new byte[256];
+        long readPosition = 0;
+        long position = 0;
+        while (true) {
+            if (buffer.remaining() < HEADER_BYTES) {
+                readPosition += refill(segmentChannel, buffer, readPosition);
+                if (buffer.remaining() < HEADER_BYTES) break;
+            }
+            int bodyLength = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            // A length running past the end of the file is a torn header; checked
+            // before it sizes any buffer
+            if (bodyLength < 12 || bodyLength > segmentChannel.size() - position - HEADER_BYTES) break;
+            if (HEADER_BYTES + bodyLength > buffer.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(HEADER_BYTES + bodyLength);
+                grown.put(buffer).flip();
+                buffer = grown;
+            }
+            if (buffer.remaining() < HEADER_BYTES + bodyLength) {
+                readPosition += refill(segmentChannel, buffer, readPosition);
+                if (buffer.remaining() < HEADER_BYTES + bodyLength) break;
+            }
+            ByteBuffer body = buffer.slice(buffer.position() + HEADER_BYTES, bodyLength);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) break;
+            long version = body.getLong();
+            if (version > afterVersion) {
+                int opCount = body.getInt();
+                for (int i = 0; i < opCount; i++) {
+                    byte op = body.get();
+                    int keyLength = body.getInt();
+                    if (keyLength > scratch.length) scratch = new byte[Math.max(keyLength, scratch.length * 2)];
+                    body.get(scratch, 0, keyLength);
+                    String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+                    int valueLength = body.getInt();
+                    if (valueLength > scratch.length) scratch = new byte[Math.max(valueLength, scratch.length * 2)];
+                    body.get(scratch, 0, valueLength);
+                    String value = op == DELETE ? null : new String(scratch, 0, valueLength, StandardCharsets.UTF_8);
+                    handler.apply(version, key, value, op == SET_EXPIRING ? body.getLong() : 0);
+                }
+            }
+            replayedVersion = version;
+            buffer.position(buffer.position() + HEADER_BYTES + bodyLength);
+            position += HEADER_BYTES + bodyLength;
+        }
+        return position;
+    }
+
+    private static long refill(FileChannel segmentChannel, ByteBuffer buffer, long readPosition) throws IOException {
+        buffer.compact();
+        long total = 0;
+        int read;
+        while (buffer.hasRemaining() && (read = segmentChannel.read(buffer, readPosition + total)) > 0) {
+            total += read;
+        }
+        buffer.flip();
+        return total;
+    }
+
+    // Flushes everything appended so far and starts a new segment whose
+    // records all have versions from firstVersion on. Must be called while
+    // the store's commit lock is held so no append can land in between.
+    void roll(long firstVersion) {
+        synchronized (flushLock) {
+            flush(Long.MAX_VALUE, true);
+            try {
+                channel.close();
+                channel = FileChannel.open(segmentPath(firstVersion), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Deletes segments that only hold versions before firstVersion
+    void deleteSegmentsBefore(long firstVersion) {
+        try {
+            for (Path segment : segments()) {
+                if (segmentVersion(segment) < firstVersion) {
+                    Files.deleteIfExists(segment);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::segmentVersion));
+        return segments;
+    }
+
+    private Path segmentPath(long firstVersion) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstVersion, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentVersion(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Encodes one commit into the current batch and returns the log position
+    // that must be durable before the commit counts as persisted.
+    // expiries holds the deadline of every write that carries a TTL, or is null
+    synchronized long append(long version, Map<String, String> writes, Map<String, Long> expiries) {
+        int start = pending.position();
+        ensureCapacity(HEADER_BYTES + 12);
+        pending.position(start + HEADER_BYTES);
+        pending.putLong(version);
+        pending.putInt(writes.size());
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            byte[] key = write.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = write.getValue() == null ? new byte[0] : write.getValue().getBytes(StandardCharsets.UTF_8);
+            Long expiresAt = expiries == null || write.getValue() == null ? null : expiries.get(write.getKey());
+            ensureCapacity(17 + key.length + value.length);
+            pending.put(write.getValue() == null ? DELETE : expiresAt == null ? SET : SET_EXPIRING);
+            pending.putInt(key.length).put(key);
+            pending.putInt(value.length).put(value);
+            if (expiresAt != null) {
+                pending.putLong(expiresAt);
+            }
+        }
+        int end = pending.position();
+        ByteBuffer body = pending.duplicate();
+        body.position(start + HEADER_BYTES).limit(end);
+        crc.reset();
+        crc.update(body);
+        pending.putInt(start, end - start - HEADER_BYTES);
+        pending.putInt(start + 4, (int) crc.getValue());
+        appendedPosition += end - start;
+        return appendedPosition;
+    }
+
+    // Called by a committer after it has released the commit lock
+    void awaitDurable(long position) {
+        if (policy == FsyncPolicy.EVERY_COMMIT) {
+            flush(position, true);
+        } else if (policy == FsyncPolicy.NEVER) {
+            flush(position, false);
+        }
+    }
+
+    private void flush(long position, boolean force) {
+        synchronized (flushLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                ByteBuffer batch = pending;
+                pending = flushing;
+                flushing = batch;
+                pending.clear();
+                target = appendedPosition;
+            }
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining()) {
+                    channel.write(flushing);
+                }
+                flushing.clear();
+                if (force) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            durablePosition = target;
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush(Long.MAX_VALUE, policy != FsyncPolicy.NEVER);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Point-in-time image of the committed store at one version:
+// [int magic][long version] then [int keyLength][key][int valueLength][value]
+// [long expiresAtMillis] per entry, ended by a keyLength of -1. Written to a temporary file and
+// renamed into place, so a snapshot on disk is always complete.
+class SnapshotFile {
+    private static final int MAGIC = 0x4B565354; // bumped when entries gained expiresAtMillis
+    private static final int END = -1;
+    private static final long MAP_WINDOW_BYTES = 1L << 30;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    interface EntryConsumer {
+        // expiresAtMillis is 0 for a key without a TTL
+        void accept(String key, String value, long expiresAtMillis);
+    }
+
+    static class Writer implements Closeable {
+        private final Path target;
+        private final Path temporary;
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private long entries;
+
+        Writer(Path directory, long version) {
+            this.target = pathFor(directory, version);
+            this.temporary = directory.resolve(target.getFileName() + ".tmp");
+            try {
+                this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.putInt(MAGIC).putLong(version);
+        }
+
+        void put(String key, String value, long expiresAtMillis) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            reserve(16 + keyBytes.length + valueBytes.length);
+            buffer.putInt(keyBytes.length).put(keyBytes);
+            buffer.putInt(valueBytes.length).put(valueBytes);
+            buffer.putLong(expiresAtMillis);
+            entries++;
+        }
+
+        long entries() {
+            return entries;
+        }
+
+        // Makes the snapshot visible under its final name
+        void publish() {
+            reserve(4);
+            buffer.putInt(END);
+            drain();
+            try {
+                channel.force(true);
+                channel.close();
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void reserve(int bytes) {
+            if (buffer.remaining() < bytes) {
+                drain();
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes);
+                }
+            }
+        }
+
+        private void drain() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+
+        // Drops the temporary file if the snapshot was never published
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    static Path pathFor(Path directory, long version) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, version, SUFFIX));
+    }
+
+    // Newest snapshot in the directory, or null when there is none
+    static Path latest(Path directory) {
+        Path latest = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path snapshot : stream) {
+                if (latest == null || versionOf(snapshot) > versionOf(latest)) {
+                    latest = snapshot;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return latest;
+    }
+
+    static long versionOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Deletes every snapshot (and leftover temporary file) older than version
+    static void deleteBefore(Path directory, long version) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path snapshot : stream) {
+                String name = snapshot.getFileName().toString();
+                if (name.endsWith(".tmp") || versionOf(snapshot) < version) {
+                    Files.deleteIfExists(snapshot);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Streams the entries of a snapshot through read-only memory mappings,
+    // remapping window by window so files larger than 2 GB load as well.
+    static long load(Path snapshot, EntryConsumer consumer) {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW_BYTES));
+            if (window.getInt() != MAGIC) {
+                throw new IllegalStateException("Not a snapshot file: " + snapshot);
+            }
+            long version = window.getLong();
+            byte[] scratch = new byte[256];
+            while (true) {
+                if (window.remaining() < 4 || !fitsEntry(window)) {
+                    windowStart += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(size - windowStart, MAP_WINDOW_BYTES));
+                }
+                int keyLength = window.getInt();
+                if (keyLength == END) {
+                    return version;
+                }
+                if (keyLength > scratch.length) scratch = new byte[Math.max(keyLength, scratch.length * 2)];
+                window.get(scratch, 0, keyLength);
+                String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+                int valueLength = window.getInt();
+                if (valueLength > scratch.length) scratch = new byte[Math.max(valueLength, scratch.length * 2)];
+                window.get(scratch, 0, valueLength);
+                String value = new String(scratch, 0, valueLength, StandardCharsets.UTF_8);
+                consumer.accept(key, value, window.getLong());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean fitsEntry(ByteBuffer window) {
+        int position = window.position();
+        int keyLength = window.getInt(position);
+        if (keyLength == END) {
+            return true;
+        }
+        if (window.remaining() < 8 + keyLength) {
+            return false;
+        }
+        return window.remaining() >= 16 + keyLength + window.getInt(position + 4 + keyLength);
+    }
+}
+
+// Holds the latest committed value of every key. Writes are always made by
+// one thread at a time (under the store's commit lock); reads may run
+// concurrently with them.
+interface StorageEngine {
+    String get(String key);
+
+    // Copies the value's UTF-8 bytes into destination and returns their
+    // length, or -1 when the key is absent
+    int get(String key, ByteBuffer destination);
+
+    void put(String key, String value);
+
+    void remove(String key);
+
+    int size();
+
+    // Weakly consistent: sees every key present for the whole iteration and
+    // may report a key more than once if it moves while being iterated
+    void forEach(BiConsumer<String, String> action);
+}
+
+class HeapStorageEngine implements StorageEngine {
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public int get(String key, ByteBuffer destination) {
+        String value = entries.get(key);
+        if (value == null) {
+            return -1;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        destination.put(bytes);
+        return bytes.length;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        entries.forEach(action);
+    }
+}
+
+// Keeps keys and values as UTF-8 bytes in direct memory segments, so the heap
+// only holds the primitive index arrays no matter how many entries there are.
+// Entries are [int keyLength][int valueLength][key][value], appended and never
+// modified in place; overwritten space is reclaimed by copying live entries
+// into fresh segments. The open-addressing index (linear probing with
+// tombstones) maps the key's String hash to the entry's segment and offset.
+// Readers run optimistically against a StampedLock and only fall back to the
+// read lock if a write raced with them.
+class OffHeapStorageEngine implements StorageEngine {
+    private static final int SEGMENT_BYTES = 64 << 20;
+    private static final int ENTRY_HEADER_BYTES = 8;
+    private static final int FOREACH_BATCH_SLOTS = 1024;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final StampedLock lock = new StampedLock();
+    private int[] hashes;
+    // segment << 32 | offset, plus one so that EMPTY never names an entry
+    private long[] pointers;
+    private ByteBuffer[] segments = new ByteBuffer[4];
+    private int segmentCount;
+    private int writeOffset;
+    private int size;
+    private int tombstones;
+    private long usedBytes;
+    private long garbageBytes;
+    private int generation;
+
+    OffHeapStorageEngine() {
+        this(1 << 16);
+    }
+
+    OffHeapStorageEngine(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) * 2);
+        hashes = new int[capacity];
+        pointers = new long[capacity];
+    }
+
+    @Override
+    public String get(String key) {
+        int hash = key.hashCode();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String value = readValue(key, hash);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException raced) {
+                // Saw a half-applied write; retry under the read lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readValue(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int get(String key, ByteBuffer destination) {
+        int hash = key.hashCode();
+        int start = destination.position();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int length = copyValue(key, hash, destination);
+                if (lock.validate(stamp)) {
+                    return length;
+                }
+            } catch (RuntimeException raced) {
+                // Saw a half-applied write; retry under the read lock
+            }
+            destination.position(start);
+        }
+        stamp = lock.readLock();
+        try {
+            return copyValue(key, hash, destination);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = key.hashCode();
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(key, hash);
+            long pointer = append(keyBytes, valueBytes);
+            if (slot >= 0) {
+                garbageBytes += entryBytes(pointers[slot]);
+                pointers[slot] = pointer;
+            } else {
+                if ((size + tombstones + 1) * 4L > pointers.length * 3L) {
+                    rehash();
+                }
+                int mask = pointers.length - 1;
+                int free = hash & mask;
+                while (pointers[free] != EMPTY && pointers[free] != TOMBSTONE) {
+                    free = (free + 1) & mask;
+                }
+                if (pointers[free] == TOMBSTONE) tombstones--;
+                hashes[free] = hash;
+                pointers[free] = pointer;
+                size++;
+            }
+            if (garbageBytes > SEGMENT_BYTES && garbageBytes * 2 > usedBytes) {
+                compact();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(key, key.hashCode());
+            if (slot >= 0) {
+                garbageBytes += entryBytes(pointers[slot]);
+                pointers[slot] = TOMBSTONE;
+                size--;
+                tombstones++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Decodes a batch of slots at a time under the read lock and hands the
+    // entries out after releasing it, so writers are only held up per batch.
+    // Slots only move on rehash, in which case the scan starts over.
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        List<String> batch = new ArrayList<>();
+        int slot = 0;
+        int scannedGeneration = -1;
+        while (true) {
+            long stamp = lock.readLock();
+            try {
+                if (scannedGeneration != generation) {
+                    scannedGeneration = generation;
+                    slot = 0;
+                }
+                if (slot >= pointers.length) {
+                    return;
+                }
+                int end = Math.min(pointers.length, slot + FOREACH_BATCH_SLOTS);
+                for (; slot < end; slot++) {
+                    long pointer = pointers[slot];
+                    if (pointer != EMPTY && pointer != TOMBSTONE) {
+                        batch.add(decodeKey(pointer));
+                        batch.add(decodeValue(pointer));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < batch.size(); i += 2) {
+                action.accept(batch.get(i), batch.get(i + 1));
+            }
+            batch.clear();
+        }
+    }
+
+    private String readValue(String key, int hash) {
+        int slot = findSlot(key, hash);
+        return slot < 0 ? null : decodeValue(pointers[slot]);
+    }
+
+    private int copyValue(String key, int hash, ByteBuffer destination) {
+        int slot = findSlot(key, hash);
+        if (slot < 0) {
+            return -1;
+        }
+        long pointer = pointers[slot];
+        ByteBuffer segment = segments[segmentOf(pointer)];
+        int offset = offsetOf(pointer);
+        int valueLength = checkedLength(segment, offset + 4);
+        destination.put(segment.slice(offset + ENTRY_HEADER_BYTES + segment.getInt(offset), valueLength));
+        return valueLength;
+    }
+
+    private int findSlot(String key, int hash) {
+        int[] hashes = this.hashes;
+        long[] pointers = this.pointers;
+        int mask = pointers.length - 1;
+        int slot = hash & mask;
+        for (int probe = 0; probe <= mask; probe++) {
+            long pointer = pointers[slot];
+            if (pointer == EMPTY) {
+                return -1;
+            }
+            if (pointer != TOMBSTONE && hashes[slot] == hash && keyEquals(pointer, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Compares the stored UTF-8 key with the String by encoding it on the fly,
+    // so lookups never materialize the key's bytes
+    private boolean keyEquals(long pointer, String key) {
+        ByteBuffer segment = segments[segmentOf(pointer)];
+        int offset = offsetOf(pointer);
+        int position = offset + ENTRY_HEADER_BYTES;
+        int end = position + segment.getInt(offset);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, key.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                codePoint = '?';
+            }
+            if (codePoint < 0x80) {
+                if (position + 1 > end || segment.get(position++) != (byte) codePoint) return false;
+            } else if (codePoint < 0x800) {
+                if (position + 2 > end
+                    || segment.get(position++) != (byte) (0xC0 | (codePoint >> 6))
+                    || segment.get(position++) != (byte) (0x80 | (codePoint & 0x3F))) return false;
+            } else if (codePoint < 0x10000) {
+                if (position + 3 > end
+                    || segment.get(position++) != (byte) (0xE0 | (codePoint >> 12))
+                    || segment.get(position++) != (byte) (0x80 | ((codePoint >> 6) & 0x3F))
+                    || segment.get(position++) != (byte) (0x80 | (codePoint & 0x3F))) return false;
+            } else {
+                if (position + 4 > end
+                    || segment.get(position++) != (byte) (0xF0 | (codePoint >> 18))
+                    || segment.get(position++) != (byte) (0x80 | ((codePoint >> 12) & 0x3F))
+                    || segment.get(position++) != (byte) (0x80 | ((codePoint >> 6) & 0x3F))
+                    || segment.get(position++) != (byte) (0x80 | (codePoint & 0x3F))) return false;
+            }
+        }
+        return position == end;
+    }
+
+    private String decodeKey(long pointer) {
+        ByteBuffer segment = segments[segmentOf(pointer)];
+        int offset = offsetOf(pointer);
+        return decode(segment, offset + ENTRY_HEADER_BYTES, checkedLength(segment, offset));
+    }
+
+    private String decodeValue(long pointer) {
+        ByteBuffer segment = segments[segmentOf(pointer)];
+        int offset = offsetOf(pointer);
+        return decode(segment, offset + ENTRY_HEADER_BYTES + segment.getInt(offset), checkedLength(segment, offset + 4));
+    }
+
+    private static String decode(ByteBuffer segment, int offset, int length) {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        segment.get(offset, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // A racing optimistic reader can see a length that was never written
+    private static int checkedLength(ByteBuffer segment, int index) {
+        int length = segment.getInt(index);
+        if (length < 0 || length > segment.capacity() - index) {
+            throw new IllegalStateException("Corrupt entry length " + length);
+        }
+        return length;
+    }
+
+    private long append(byte[] key, byte[] value) {
+        int bytes = ENTRY_HEADER_BYTES + key.length + value.length;
+        if (segmentCount == 0 || writeOffset + bytes > segments[segmentCount - 1].capacity()) {
+            addSegment(bytes);
+        }
+        ByteBuffer segment = segments[segmentCount - 1];
+        int offset = writeOffset;
+        segment.putInt(offset, key.length);
+        segment.putInt(offset + 4, value.length);
+        segment.put(offset + ENTRY_HEADER_BYTES, key);
+        segment.put(offset + ENTRY_HEADER_BYTES + key.length, value);
+        writeOffset += bytes;
+        usedBytes += bytes;
+        return ((long) (segmentCount - 1) << 32 | offset) + 1;
+    }
+
+    private void addSegment(int minimumBytes) {
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        }
+        segments[segmentCount++] = ByteBuffer.allocateDirect(Math.max(SEGMENT_BYTES, minimumBytes));
+        writeOffset = 0;
+    }
+
+    private int entryBytes(long pointer) {
+        ByteBuffer segment = segments[segmentOf(pointer)];
+        int offset = offsetOf(pointer);
+        return ENTRY_HEADER_BYTES + segment.getInt(offset) + segment.getInt(offset + 4);
+    }
+
+    private void rehash() {
+        int capacity = Integer.highestOneBit(Math.max(16, size * 4 - 1));
+        int[] oldHashes = hashes;
+        long[] oldPointers = pointers;
+        hashes = new int[capacity];
+        pointers = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldPointers.length; i++) {
+            if (oldPointers[i] != EMPTY && oldPointers[i] != TOMBSTONE) {
+                int slot = oldHashes[i] & mask;
+                while (pointers[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                pointers[slot] = oldPointers[i];
+            }
+        }
+        tombstones = 0;
+        generation++;
+    }
+
+    // Copies live entries into fresh segments; the old ones are freed once
+    // no optimistic reader references them any more
+    private void compact() {
+        ByteBuffer[] oldSegments = segments;
+        segments = new ByteBuffer[4];
+        segmentCount = 0;
+        usedBytes = 0;
+        garbageBytes = 0;
+        for (int slot = 0; slot < pointers.length; slot++) {
+            long pointer = pointers[slot];
+            if (pointer != EMPTY && pointer != TOMBSTONE) {
+                ByteBuffer segment = oldSegments[segmentOf(pointer)];
+                int offset = offsetOf(pointer);
+                int bytes = ENTRY_HEADER_BYTES + segment.getInt(offset) + segment.getInt(offset + 4);
+                if (segmentCount == 0 || writeOffset + bytes > segments[segmentCount - 1].capacity()) {
+                    addSegment(bytes);
+                }
+                segments[segmentCount - 1].put(writeOffset, segment, offset, bytes);
+                pointers[slot] = ((long) (segmentCount - 1) << 32 | writeOffset) + 1;
+                writeOffset += bytes;
+                usedBytes += bytes;
+            }
+        }
+    }
+
+    private static int segmentOf(long pointer) {
+        return (int) ((pointer - 1) >>> 32);
+    }
+
+    private static int offsetOf(long pointer) {
+        return (int) (pointer - 1);
+    }
+}
+
+// Chooses which key to evict once the store is over its limits. The store
+// serializes every call, so implementations need no locking of their own.
+interface EvictionPolicy {
+    void recordInsert(String key);
+
+    void recordAccess(String key);
+
+    void recordRemoval(String key);
+
+    // Key that should be evicted next, or null when no key is tracked
+    String victim();
+}
+
+class LruEvictionPolicy implements EvictionPolicy {
+    private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void recordInsert(String key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        order.get(key);
+    }
+
+    @Override
+    public void recordRemoval(String key) {
+        order.remove(key);
+    }
+
+    @Override
+    public String victim() {
+        return order.isEmpty() ? null : order.keySet().iterator().next();
+    }
+}
+
+// Evicts the least frequently used key, the least recently used among ties
+class LfuEvictionPolicy implements EvictionPolicy {
+    private final Map<String, Integer> frequencies = new HashMap<>();
+    private final TreeMap<Integer, LinkedHashSet<String>> keysByFrequency = new TreeMap<>();
+
+    @Override
+    public void recordInsert(String key) {
+        if (frequencies.containsKey(key)) {
+            recordAccess(key);
+            return;
+        }
+        frequencies.put(key, 1);
+        keysByFrequency.computeIfAbsent(1, k -> new LinkedHashSet<>()).add(key);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        Integer frequency = frequencies.get(key);
+        if (frequency == null) {
+            return;
+        }
+        detach(key, frequency);
+        frequencies.put(key, frequency + 1);
+        keysByFrequency.computeIfAbsent(frequency + 1, k -> new LinkedHashSet<>()).add(key);
+    }
+
+    @Override
+    public void recordRemoval(String key) {
+        Integer frequency = frequencies.remove(key);
+        if (frequency != null) {
+            detach(key, frequency);
+        }
+    }
+
+    @Override
+    public String victim() {
+        return keysByFrequency.isEmpty() ? null : keysByFrequency.firstEntry().getValue().iterator().next();
+    }
+
+    private void detach(String key, int frequency) {
+        Set<String> keys = keysByFrequency.get(frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByFrequency.remove(frequency);
+        }
+    }
+}
+
+// Window TinyLFU: new keys enter a small LRU window and, once pushed out of
+// it, must beat the main space's eviction candidate on estimated frequency
+// to stay. The main space is a segmented LRU (probation and protected), and
+// frequencies come from a count-min sketch that halves itself periodically.
+class WindowTinyLfuEvictionPolicy implements EvictionPolicy {
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    // Last key moved from the window into probation, still awaiting admission
+    private String candidate;
+
+    WindowTinyLfuEvictionPolicy(long expectedEntries) {
+        long entries = Math.max(2, expectedEntries);
+        this.windowCapacity = (int) Math.max(1, entries / 100);
+        this.protectedCapacity = (int) ((entries - windowCapacity) * 80 / 100);
+        this.sketch = new FrequencySketch(entries);
+    }
+
+    @Override
+    public void recordInsert(String key) {
+        if (window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key)) {
+            recordAccess(key);
+            return;
+        }
+        sketch.increment(key);
+        window.put(key, Boolean.TRUE);
+        if (window.size() > windowCapacity) {
+            String demoted = first(window);
+            window.remove(demoted);
+            probation.put(demoted, Boolean.TRUE);
+            candidate = demoted;
+        }
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        sketch.increment(key);
+        if (window.containsKey(key)) {
+            window.get(key);
+        } else if (probation.remove(key) != null) {
+            if (key.equals(candidate)) candidate = null;
+            protectedSegment.put(key, Boolean.TRUE);
+            if (protectedSegment.size() > protectedCapacity) {
+                String demoted = first(protectedSegment);
+                protectedSegment.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        } else {
+            protectedSegment.get(key);
+        }
+    }
+
+    @Override
+    public void recordRemoval(String key) {
+        if (key.equals(candidate)) candidate = null;
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    public String victim() {
+        String probationVictim = first(probation);
+        if (candidate != null && probationVictim != null && !candidate.equals(probationVictim)) {
+            return sketch.frequency(candidate) > sketch.frequency(probationVictim) ? probationVictim : candidate;
+        }
+        if (probationVictim != null) return probationVictim;
+        String protectedVictim = first(protectedSegment);
+        return protectedVictim != null ? protectedVictim : first(window);
+    }
+
+    private static String first(LinkedHashMap<String, Boolean> segment) {
+        return segment.isEmpty() ? null : segment.keySet().iterator().next();
+    }
+}
+
+// Four-row count-min sketch of 4-bit counters packed sixteen to a long.
+// Every counter is halved after a sample of additions, so old popularity fades.
+class FrequencySketch {
+    private static final int[] SEEDS = {0x97CB3127, 0xB9E3C4A5, 0x3C6EF372, 0x7F4A7C15};
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        int counters = Integer.highestOneBit((int) Math.min(1 << 28, Math.max(64, expectedEntries * 4)) - 1) << 1;
+        this.table = new long[counters / 16];
+        this.counterMask = counters - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, Math.max(64, expectedEntries * 10));
+    }
+
+    int frequency(String key) {
+        int hash = key.hashCode();
+        int frequency = 15;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = counterIndex(hash, row);
+            frequency = Math.min(frequency, (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15));
+        }
+        return frequency;
+    }
+
+    void increment(String key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = counterIndex(hash, row);
+            int shift = (index & 15) << 2;
+            if (((table[index >>> 4] >>> shift) & 15) < 15) {
+                table[index >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+
+    private int counterIndex(int hash, int row) {
+        int mixed = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & counterMask;
+    }
+}
+
+// Log-linear histogram of non-negative longs in the style of HdrHistogram:
+// each power of two is split into SUB_BUCKETS / 2 linear buckets, so a
+// recorded value is reported within about 3% of itself. Counts live in a
+// few stripes of atomic arrays picked by thread id, which keeps recording
+// lock-free and allocation-free and spreads contention across cache lines.
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+    // Two slots after the buckets of each stripe hold the sum and the max
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    Histogram() {
+        int stripeCount = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 2);
+        }
+        stripeMask = stripeCount - 1;
+    }
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        AtomicLongArray stripe = stripes[(int) mix(Thread.currentThread().getId()) & stripeMask];
+        stripe.getAndIncrement(bucketOf(value));
+        stripe.getAndAdd(SUM, value);
+        long max = stripe.get(MAX);
+        while (value > max && !stripe.compareAndSet(MAX, max, value)) {
+            max = stripe.get(MAX);
+        }
+    }
+
+    private static long mix(long id) {
+        id *= 0x9E3779B97F4A7C15L;
+        return id ^ (id >>> 32);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int top = (int) (value >>> (magnitude - SUB_BUCKET_BITS + 1));
+        return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF + (top - HALF);
+    }
+
+    // Largest value that lands in the bucket, as HdrHistogram reports it
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket - SUB_BUCKETS) / HALF + SUB_BUCKET_BITS;
+        long top = (bucket - SUB_BUCKETS) % HALF + HALF;
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        return (top << shift) + (1L << shift) - 1;
+    }
+
+    // Point-in-time totals; concurrent recordings may be partly included
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = stripe.get(i);
+                counts[i] += bucketCount;
+                count += bucketCount;
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
+
+// Operation latencies and transaction counters for one KVStore. Everything
+// is recorded on the caller's thread without locks or allocation, so it
+// stays on all the time. Readable through JMX (as a DynamicMBean) or as
+// Prometheus-style text from render(), which serveHttp() exposes at /metrics.
+class KVStoreMetrics implements DynamicMBean {
+    enum Operation {
+        GET, SET, DELETE, BEGIN, COMMIT, ROLLBACK
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final KVStore store;
+    private final Histogram[] latencies;
+    // Nesting depth of each transaction level opened, and write-set size of
+    // each outermost commit
+    private final Histogram transactionDepth = new Histogram();
+    private final Histogram writeSetSize = new Histogram();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder noActiveTransaction = new LongAdder();
+
+    KVStoreMetrics(KVStore store) {
+        this.store = store;
+        latencies = new Histogram[Operation.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    void recordLatency(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void recordDepth(int depth) {
+        transactionDepth.record(depth);
+    }
+
+    void recordWriteSetSize(int size) {
+        writeSetSize.record(size);
+    }
+
+    void recordConflict() {
+        conflicts.increment();
+    }
+
+    void recordAbort() {
+        aborts.increment();
+    }
+
+    void recordNoActiveTransaction() {
+        noActiveTransaction.increment();
+    }
+
+    public Histogram.Snapshot getLatency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    public Histogram.Snapshot getTransactionDepth() {
+        return transactionDepth.snapshot();
+    }
+
+    public Histogram.Snapshot getWriteSetSize() {
+        return writeSetSize.snapshot();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    public long getNoActiveTransaction() {
+        return noActiveTransaction.sum();
+    }
+
+    // Prometheus text exposition format
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE kvstore_operation_latency_nanos summary\n");
+        for (Operation operation : Operation.values()) {
+            String label = "op=\"" + operation.name().toLowerCase() + "\"";
+            renderSummary(out, "kvstore_operation_latency_nanos", label, getLatency(operation));
+        }
+        out.append("# TYPE kvstore_transaction_depth summary\n");
+        renderSummary(out, "kvstore_transaction_depth", null, getTransactionDepth());
+        out.append("# TYPE kvstore_write_set_size summary\n");
+        renderSummary(out, "kvstore_write_set_size", null, getWriteSetSize());
+        renderValue(out, "kvstore_conflicts_total", "counter", getConflicts());
+        renderValue(out, "kvstore_aborts_total", "counter", getAborts());
+        renderValue(out, "kvstore_no_active_transaction_total", "counter", getNoActiveTransaction());
+        renderValue(out, "kvstore_keys", "gauge", store.getKeyCount());
+        renderValue(out, "kvstore_memory_bytes_estimate", "gauge", store.getEstimatedMemoryBytes());
+        renderValue(out, "kvstore_committed_version", "gauge", store.getCommittedVersion());
+        return out.toString();
+    }
+
+    private static void renderSummary(StringBuilder out, String name, String label, Histogram.Snapshot snapshot) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{");
+            if (label != null) out.append(label).append(",");
+            out.append("quantile=\"").append(quantile).append("\"} ").append(snapshot.percentile(quantile)).append('\n');
+        }
+        String labels = label == null ? "" : "{" + label + "}";
+        out.append(name).append("_sum").append(labels).append(' ').append(snapshot.getSum()).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(snapshot.getCount()).append('\n');
+    }
+
+    private static void renderValue(StringBuilder out, String name, String type, long value) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Serves render() at http://localhost:port/metrics until the returned
+    // server is stopped
+    public HttpServer serveHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("kvstore:type=KVStore,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean " + name, e);
+        }
+    }
+
+    // JMX attributes are flat: <operation>LatencyP50Nanos and so on for each
+    // operation and quantile, plus one per counter and gauge
+    private Map<String, Long> attributes() {
+        Map<String, Long> attributes = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            Histogram.Snapshot snapshot = getLatency(operation);
+            String prefix = operation.name().toLowerCase();
+            attributes.put(prefix + "Count", snapshot.getCount());
+            attributes.put(prefix + "LatencyP50Nanos", snapshot.percentile(0.5));
+            attributes.put(prefix + "LatencyP99Nanos", snapshot.percentile(0.99));
+            attributes.put(prefix + "LatencyP999Nanos", snapshot.percentile(0.999));
+            attributes.put(prefix + "LatencyMaxNanos", snapshot.getMax());
+        }
+        Histogram.Snapshot depth = getTransactionDepth();
+        attributes.put("transactionDepthMax", depth.getMax());
+        attributes.put("transactionDepthP99", depth.percentile(0.99));
+        Histogram.Snapshot writeSet = getWriteSetSize();
+        attributes.put("writeSetSizeP50", writeSet.percentile(0.5));
+        attributes.put("writeSetSizeP99", writeSet.percentile(0.99));
+        attributes.put("writeSetSizeMax", writeSet.getMax());
+        attributes.put("conflicts", getConflicts());
+        attributes.put("aborts", getAborts());
+        attributes.put("noActiveTransaction", getNoActiveTransaction());
+        attributes.put("keys", (long) store.getKeyCount());
+        attributes.put("memoryBytesEstimate", store.getEstimatedMemoryBytes());
+        attributes.put("committedVersion", store.getCommittedVersion());
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Long> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Long value = attributes.get(name);
+            if (value != null) list.add(new Attribute(name, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (String name : attributes().keySet()) {
+            infos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "KVStore metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+// Receives every commit in version order, including the deletes made by
+// expiry and eviction. It runs while the store's commit lock is held, so it
+// should only hand the change off, and must copy the maps to keep them.
+interface CommitListener {
+    void onCommit(long version, Map<String, String> writes, Map<String, Long> expiries);
+}
+
+public class KVStore implements Closeable {
+
+    // Value a key held before the commit with the given version overwrote it.
+    // globalStore always holds the latest committed value, so a snapshot read
+    // walks this chain back from the newest entry to the version it can see.
+    // Deletes made by eviction or expiry are internal: they change what
+    // readers see but never conflict with a transaction's writes.
+    private static class Version {
+        private final long version;
+        private final String previous;
+        private final boolean internal;
+        private volatile Version older;
+
+        Version(long version, String previous, boolean internal, Version older) {
+            this.version = version;
+            this.previous = previous;
+            this.internal = internal;
+            this.older = older;
+        }
+    }
+
+    // One level of a (possibly nested) transaction: only the writes made at
+    // this level, layered over its parent. A null value is a tombstone.
+    private static class Transaction {
+        private final long snapshotVersion;
+        private final Transaction parent;
+        private final Transaction root;
+        private final int depth;
+        private final Map<String, String> writes;
+        // Deadlines of the TTL writes at this level; allocated on first use
+        private Map<String, Long> expiries;
+        // Keys written anywhere in the nest, kept on the root only
+        private Set<String> pinnedKeys;
+        // Set once the transaction voted yes in a two-phase commit
+        private boolean prepared;
+
+        Transaction(long snapshotVersion) {
+            this.snapshotVersion = snapshotVersion;
+            this.parent = null;
+            this.root = this;
+            this.depth = 1;
+            this.writes = new HashMap<>();
+        }
+
+        Transaction(Transaction parent) {
+            this.snapshotVersion = parent.snapshotVersion;
+            this.parent = parent;
+            this.root = parent.root;
+            this.depth = parent.depth + 1;
+            this.writes = new HashMap<>();
+        }
+
+        Map<String, Long> expiries() {
+            if (expiries == null) expiries = new HashMap<>();
+            return expiries;
+        }
+    }
+
+    private static class Expiry {
+        private final String key;
+        private final long expiresAtMillis;
+        private final long checkAtMillis;
+
+        Expiry(String key, long expiresAtMillis, long checkAtMillis) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+            this.checkAtMillis = checkAtMillis;
+        }
+    }
+
+    // Cache counters since the store was opened
+    public static class CacheStats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final long uptimeMillis;
+
+        CacheStats(long hits, long misses, long evictions, long expirations, long uptimeMillis) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public double getEvictionsPerSecond() {
+            return uptimeMillis == 0 ? 0 : evictions * 1000.0 / uptimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{" + "hits=" + hits + ", misses=" + misses + ", hitRatio=" + getHitRatio() +
+                   ", evictions=" + evictions + ", expirations=" + expirations +
+                   ", evictionsPerSecond=" + getEvictionsPerSecond() + '}';
+        }
+    }
+
+    // Timings of the last startup: loading the snapshot and replaying the log tail after it
+    public static class RecoveryStats {
+        private final long snapshotVersion;
+        private final long snapshotEntries;
+        private final long snapshotLoadMillis;
+        private final long replayedWrites;
+        private final long logReplayMillis;
+
+        RecoveryStats(long snapshotVersion, long snapshotEntries, long snapshotLoadMillis, long replayedWrites,
+                      long logReplayMillis) {
+            this.snapshotVersion = snapshotVersion;
+            this.snapshotEntries = snapshotEntries;
+            this.snapshotLoadMillis = snapshotLoadMillis;
+            this.replayedWrites = replayedWrites;
+            this.logReplayMillis = logReplayMillis;
+        }
+
+        public long getSnapshotVersion() {
+            return snapshotVersion;
+        }
+
+        public long getSnapshotEntries() {
+            return snapshotEntries;
+        }
+
+        public long getSnapshotLoadMillis() {
+            return snapshotLoadMillis;
+        }
+
+        public long getReplayedWrites() {
+            return replayedWrites;
+        }
+
+        public long getLogReplayMillis() {
+            return logReplayMillis;
+        }
+
+        public long getTotalMillis() {
+            return snapshotLoadMillis + logReplayMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "RecoveryStats{" + "snapshotVersion=" + snapshotVersion + ", snapshotEntries=" + snapshotEntries +
+                   ", snapshotLoadMillis=" + snapshotLoadMillis + ", replayedWrites=" + replayedWrites +
+                   ", logReplayMillis=" + logReplayMillis + '}';
+        }
+    }
+
+    // Transaction handle owned by a single caller. Each session keeps its own
+    // chain of nested transactions, so concurrent callers never see each
+    // other's open writes.
+    public class Session {
+        private Transaction current;
+        private long lastCommitVersion;
+
+        public void begin() {
+            long start = System.nanoTime();
+            checkNotPrepared();
+            if(current != null)
+                current = new Transaction(current);
+            else
+                current = openSnapshot();
+            metrics.recordDepth(current.depth);
+            metrics.recordLatency(KVStoreMetrics.Operation.BEGIN, start);
+        }
+
+        public boolean inTransaction() {
+            return current != null;
+        }
+
+        // Version of this session's latest commit; a replica that has applied
+        // it reflects every write the session has made
+        public long getLastCommitVersion() {
+            return lastCommitVersion;
+        }
+
+        public void rollback() {
+            long start = System.nanoTime();
+            if (current != null && current.prepared) {
+                abortPrepared();
+            }
+            else if (current != null) {
+                if (current.parent == null) {
+                    closeSnapshot(current);
+                    metrics.recordAbort();
+                }
+                current = current.parent;
+            }
+            else {
+                metrics.recordNoActiveTransaction();
+                System.out.println("No active transaction");
+            }
+            metrics.recordLatency(KVStoreMetrics.Operation.ROLLBACK, start);
+        }
+
+        // A nested commit folds its writes into the enclosing transaction;
+        // only the outermost commit publishes to the store
+        public void commit() {
+            long start = System.nanoTime();
+            if (current != null && current.prepared) {
+                commitPrepared();
+            }
+            else if (current != null) {
+                Transaction committed = current;
+                current = committed.parent;
+                if (current != null) {
+                    current.writes.putAll(committed.writes);
+                    for (String key : committed.writes.keySet()) {
+                        Long expiresAt = committed.expiries == null ? null : committed.expiries.get(key);
+                        if (expiresAt != null) current.expiries().put(key, expiresAt);
+                        else if (current.expiries != null) current.expiries.remove(key);
+                    }
+                    metrics.recordLatency(KVStoreMetrics.Operation.COMMIT, start);
+                    return;
+                }
+                metrics.recordWriteSetSize(committed.writes.size());
+                try {
+                    lastCommitVersion = publish(committed.writes, committed.expiries, committed.snapshotVersion);
+                } catch (TransactionConflictException e) {
+                    metrics.recordConflict();
+                    metrics.recordAbort();
+                    throw e;
+                } finally {
+                    closeSnapshot(committed);
+                }
+            }
+            else {
+                metrics.recordNoActiveTransaction();
+                System.out.println("No active transaction");
+            }
+            metrics.recordLatency(KVStoreMetrics.Operation.COMMIT, start);
+        }
+
+        public void set(String key ,String value) {
+            long start = System.nanoTime();
+            write(Collections.singletonMap(key, value), null);
+            metrics.recordLatency(KVStoreMetrics.Operation.SET, start);
+        }
+
+        // The key expires ttlMillis from now; a later set without a TTL clears it
+        public void set(String key, String value, long ttlMillis) {
+            if (ttlMillis <= 0) {
+                throw new IllegalArgumentException("TTL must be positive");
+            }
+            long start = System.nanoTime();
+            write(Collections.singletonMap(key, value),
+                    Collections.singletonMap(key, System.currentTimeMillis() + ttlMillis));
+            metrics.recordLatency(KVStoreMetrics.Operation.SET, start);
+        }
+
+        public String get(String key) {
+            long start = System.nanoTime();
+            String value = current != null ? read(key) : unexpired(key, globalStore.get(key));
+            recordRead(key, value != null);
+            metrics.recordLatency(KVStoreMetrics.Operation.GET, start);
+            return value == null ? "" : value;
+        }
+
+        // Copies the value's UTF-8 bytes into destination and returns their
+        // length, or -1 when the key is absent. Outside a transaction this
+        // reads straight from the storage engine without allocating.
+        public int get(String key, ByteBuffer destination) {
+            long start = System.nanoTime();
+            int length;
+            if (current == null) {
+                length = isExpired(key) ? -1 : globalStore.get(key, destination);
+                recordRead(key, length >= 0);
+            } else {
+                String value = read(key);
+                recordRead(key, value != null);
+                length = -1;
+                if (value != null) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    destination.put(bytes);
+                    length = bytes.length;
+                }
+            }
+            metrics.recordLatency(KVStoreMetrics.Operation.GET, start);
+            return length;
+        }
+
+        public void delete(String key) {
+            long start = System.nanoTime();
+            write(Collections.singletonMap(key, null), null);
+            metrics.recordLatency(KVStoreMetrics.Operation.DELETE, start);
+        }
+
+        // Resolves the batch layer by layer, skipping empty layers and stopping
+        // once every key is found; each key still costs one lookup per layer
+        // it is not found in, and keys no layer wrote fall through to the snapshot
+        public List<String> mget(List<String> keys) {
+            String[] values = new String[keys.size()];
+            if (current == null) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = unexpired(keys.get(i), globalStore.get(keys.get(i)));
+                }
+            } else {
+                boolean[] resolved = new boolean[values.length];
+                int unresolved = values.length;
+                for (Transaction layer = current; layer != null && unresolved > 0; layer = layer.parent) {
+                    if (layer.writes.isEmpty()) continue;
+                    for (int i = 0; i < values.length; i++) {
+                        if (resolved[i]) continue;
+                        String value = layer.writes.getOrDefault(keys.get(i), UNWRITTEN);
+                        if (value != UNWRITTEN) {
+                            values[i] = expiredIn(layer, keys.get(i)) ? null : value;
+                            resolved[i] = true;
+                            unresolved--;
+                        }
+                    }
+                }
+                for (int i = 0; i < values.length && unresolved > 0; i++) {
+                    if (!resolved[i]) {
+                        values[i] = unexpired(keys.get(i), readAt(keys.get(i), current.snapshotVersion));
+                    }
+                }
+            }
+            List<String> result = new ArrayList<>(values.length);
+            for (int i = 0; i < values.length; i++) {
+                String value = values[i];
+                recordRead(keys.get(i), value != null);
+                result.add(value == null ? "" : value);
+            }
+            return result;
+        }
+
+        // Outside a transaction the batch is committed as one version
+        public void mset(Map<String, String> entries) {
+            write(new HashMap<>(entries), null);
+        }
+
+        public void mdelete(Collection<String> keys) {
+            Map<String, String> deletes = new HashMap<>();
+            for (String key : keys) {
+                deletes.put(key, null);
+            }
+            write(deletes, null);
+        }
+
+        // Streams the entries visible to this session with from <= key < to,
+        // in key order; a null bound is open. Inside a transaction the
+        // iterator reads that transaction's view and is only valid while it
+        // stays open.
+        public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+            return new ScanIterator(this, from, to, null);
+        }
+
+        public Iterator<Map.Entry<String, String>> scanPrefix(String prefix) {
+            return new ScanIterator(this, prefix, null, prefix);
+        }
+
+        private String read(String key) {
+            return readThrough(current, key);
+        }
+
+        // First phase of a two-phase commit: validates the outermost transaction
+        // and holds its keys so no other commit can touch them until the
+        // coordinator decides. A conflict, including a key another prepared
+        // transaction holds, fails at once and discards the transaction; not
+        // waiting is what keeps two coordinators from deadlocking each other.
+        public void prepare() {
+            if (current == null || current.parent != null || current.prepared) {
+                throw new IllegalStateException("Only an open outermost transaction can be prepared");
+            }
+            commitLock.lock();
+            try {
+                checkNotHeld(current.writes);
+                validate(current.writes, current.snapshotVersion);
+                preparedKeys.addAll(current.writes.keySet());
+                current.prepared = true;
+            } catch (TransactionConflictException e) {
+                closeSnapshot(current);
+                current = null;
+                metrics.recordConflict();
+                metrics.recordAbort();
+                throw e;
+            } finally {
+                commitLock.unlock();
+            }
+        }
+
+        // Second phase after every participant voted yes. The keys have been
+        // held since prepare, so applying the writes cannot conflict.
+        public void commitPrepared() {
+            Transaction prepared = requirePrepared();
+            current = null;
+            long logPosition;
+            commitLock.lock();
+            try {
+                preparedKeys.removeAll(prepared.writes.keySet());
+                logPosition = apply(prepared.writes, prepared.expiries, prepared.snapshotVersion, false);
+                lastCommitVersion = currentVersion;
+            } finally {
+                commitLock.unlock();
+                closeSnapshot(prepared);
+            }
+            awaitDurable(logPosition);
+            if (evictionPolicy != null) {
+                evictIfNeeded();
+            }
+        }
+
+        public void abortPrepared() {
+            Transaction prepared = requirePrepared();
+            current = null;
+            metrics.recordAbort();
+            commitLock.lock();
+            try {
+                preparedKeys.removeAll(prepared.writes.keySet());
+            } finally {
+                commitLock.unlock();
+                closeSnapshot(prepared);
+            }
+        }
+
+        private Transaction requirePrepared() {
+            if (current == null || !current.prepared) {
+                throw new IllegalStateException("No prepared transaction");
+            }
+            return current;
+        }
+
+        private void checkNotPrepared() {
+            if (current != null && current.prepared) {
+                throw new IllegalStateException("Transaction is prepared; commit or roll it back");
+            }
+        }
+
+        // Buffers the writes in the open transaction, pinning their keys against
+        // eviction and expiry, or commits them right away outside one
+        private void write(Map<String, String> writes, Map<String, Long> expiries) {
+            checkNotPrepared();
+            if (current == null) {
+                lastCommitVersion = publish(writes, expiries, Long.MAX_VALUE);
+                return;
+            }
+            current.writes.putAll(writes);
+            for (String key : writes.keySet()) {
+                Long expiresAt = expiries == null ? null : expiries.get(key);
+                if (expiresAt != null) current.expiries().put(key, expiresAt);
+                else if (current.expiries != null) current.expiries.remove(key);
+                Transaction root = current.root;
+                if (root.pinnedKeys == null) root.pinnedKeys = new HashSet<>();
+                if (root.pinnedKeys.add(key)) pinnedKeys.merge(key, 1, Integer::sum);
+            }
+        }
+    }
+
+    // Walks the delta layers innermost first, then the snapshot. A value
+    // from a layer expires by the deadline that layer gave it; only a value
+    // from the snapshot is checked against the committed deadlines.
+    private String readThrough(Transaction transaction, String key) {
+        for (Transaction layer = transaction; layer != null; layer = layer.parent) {
+            String value = layer.writes.getOrDefault(key, UNWRITTEN);
+            if (value != UNWRITTEN) {
+                return expiredIn(layer, key) ? null : value;
+            }
+        }
+        return unexpired(key, readAt(key, transaction.snapshotVersion));
+    }
+
+    // Whether the write of key in this layer carried a TTL that has run out
+    private static boolean expiredIn(Transaction layer, String key) {
+        Long deadline = layer.expiries == null ? null : layer.expiries.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    // Identity marker for a key a delta layer has not touched
+    private static final String UNWRITTEN = new String();
+    private static final long SWEEP_INTERVAL_MILLIS = 100;
+    private static final int SWEEP_BATCH = 1000;
+
+    // Merges the ordered index with the keys written in the session's open
+    // transaction and resolves each key lazily as the caller advances
+    private class ScanIterator implements Iterator<Map.Entry<String, String>> {
+        private final Transaction transaction;
+        private final String to;
+        private final String prefix;
+        private final Iterator<String> committedKeys;
+        private final Iterator<String> localKeys;
+        private String nextCommitted;
+        private String nextLocal;
+        private Map.Entry<String, String> next;
+
+        ScanIterator(Session session, String from, String to, String prefix) {
+            if (orderedKeys == null) {
+                throw new IllegalStateException("Store was created without an ordered index");
+            }
+            this.transaction = session.current;
+            this.to = to;
+            this.prefix = prefix;
+            this.committedKeys = (from == null ? orderedKeys : orderedKeys.tailSet(from, true)).iterator();
+            TreeSet<String> written = new TreeSet<>();
+            for (Transaction layer = transaction; layer != null; layer = layer.parent) {
+                for (String key : layer.writes.keySet()) {
+                    if ((from == null || key.compareTo(from) >= 0) && inRange(key)) written.add(key);
+                }
+            }
+            this.localKeys = written.iterator();
+            nextCommitted = advance(committedKeys);
+            nextLocal = advance(localKeys);
+            next = fetch();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            next = fetch();
+            return result;
+        }
+
+        private Map.Entry<String, String> fetch() {
+            while (nextCommitted != null || nextLocal != null) {
+                String key;
+                if (nextLocal == null || (nextCommitted != null && nextCommitted.compareTo(nextLocal) < 0)) {
+                    key = nextCommitted;
+                    nextCommitted = advance(committedKeys);
+                } else {
+                    key = nextLocal;
+                    if (nextLocal.equals(nextCommitted)) nextCommitted = advance(committedKeys);
+                    nextLocal = advance(localKeys);
+                }
+                String value = transaction != null ? readThrough(transaction, key) : unexpired(key, globalStore.get(key));
+                if (value != null) {
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+            }
+            return null;
+        }
+
+        private String advance(Iterator<String> keys) {
+            if (!keys.hasNext()) {
+                return null;
+            }
+            String key = keys.next();
+            return inRange(key) ? key : null;
+        }
+
+        private boolean inRange(String key) {
+            return (to == null || key.compareTo(to) < 0) && (prefix == null || key.startsWith(prefix));
+        }
+    }
+
+    private final StorageEngine globalStore;
+    private final Map<String, Version> versionChains;
+    // Every key any open snapshot may see, in order; null unless requested.
+    // A deleted key leaves the index only once its version chain is pruned.
+    private final NavigableSet<String> orderedKeys;
+    private final Set<Transaction> activeTransactions;
+    private final ReentrantLock commitLock;
+    // Keys of transactions waiting for a two-phase commit decision; only
+    // touched while holding commitLock
+    private final Set<String> preparedKeys;
+    private final List<CommitListener> commitListeners;
+    private final KVStoreMetrics metrics;
+    private final ThreadLocal<Session> threadSessions;
+    // Only touched while holding commitLock
+    private final Deque<Version> prunableVersions;
+    private final Deque<String> prunableKeys;
+    private volatile long currentVersion;
+
+    // TTL deadlines of committed keys, and the sweeper's queue ordered by
+    // when to look at each one next; stale queue entries are skipped
+    private final Map<String, Long> expiresAt;
+    private final PriorityQueue<Expiry> expiryQueue;
+    private ScheduledExecutorService sweeper;
+    // Keys written by open transactions, with the number of transactions
+    private final Map<String, Integer> pinnedKeys;
+    // Policy calls are serialized by policyLock; reads only record an access
+    // if they get the lock without waiting
+    private final ReentrantLock policyLock;
+    private volatile EvictionPolicy evictionPolicy;
+    private volatile long maxEntries;
+    private volatile long maxMemoryBytes;
+    private volatile long approximateBytes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder expirations;
+    private final long openedAtMillis;
+
+    private final Path dataDirectory;
+    private final WriteAheadLog writeAheadLog;
+    private final ScheduledExecutorService checkpointer;
+    private final Object checkpointLock = new Object();
+    private long lastCheckpointVersion;
+    private RecoveryStats recoveryStats;
+
+    public KVStore() {
+        this(null, FsyncPolicy.NEVER, 0);
+    }
+
+    public KVStore(StorageEngine storageEngine) {
+        this(storageEngine, false, null, FsyncPolicy.NEVER, 0, 0);
+    }
+
+    public KVStore(StorageEngine storageEngine, boolean orderedIndex) {
+        this(storageEngine, orderedIndex, null, FsyncPolicy.NEVER, 0, 0);
+    }
+
+    public KVStore(Path dataDirectory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this(dataDirectory, fsyncPolicy, fsyncIntervalMillis, 0);
+    }
+
+    public KVStore(Path dataDirectory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                   long checkpointIntervalMillis) {
+        this(new HeapStorageEngine(), dataDirectory, fsyncPolicy, fsyncIntervalMillis, checkpointIntervalMillis);
+    }
+
+    public KVStore(StorageEngine storageEngine, Path dataDirectory, FsyncPolicy fsyncPolicy,
+                   long fsyncIntervalMillis, long checkpointIntervalMillis) {
+        this(storageEngine, false, dataDirectory, fsyncPolicy, fsyncIntervalMillis, checkpointIntervalMillis);
+    }
+
+    // Persists commits to a write-ahead log in dataDirectory and rebuilds the
+    // store from the latest snapshot plus the log after it; a null directory
+    // keeps the store in memory only. A positive checkpointIntervalMillis
+    // writes a new snapshot in the background at that interval. Committed
+    // values live in storageEngine, e.g. an OffHeapStorageEngine for stores
+    // too large to keep as heap objects. orderedIndex enables range scans.
+    public KVStore(StorageEngine storageEngine, boolean orderedIndex, Path dataDirectory, FsyncPolicy fsyncPolicy,
+                   long fsyncIntervalMillis, long checkpointIntervalMillis) {
+        globalStore = storageEngine;
+        versionChains = new ConcurrentHashMap<>();
+        orderedKeys = orderedIndex ? new ConcurrentSkipListSet<>() : null;
+        activeTransactions = new HashSet<>();
+        commitLock = new ReentrantLock();
+        preparedKeys = new HashSet<>();
+        commitListeners = new CopyOnWriteArrayList<>();
+        metrics = new KVStoreMetrics(this);
+        threadSessions = ThreadLocal.withInitial(Session::new);
+        prunableVersions = new ArrayDeque<>();
+        prunableKeys = new ArrayDeque<>();
+        currentVersion = 0;
+        expiresAt = new ConcurrentHashMap<>();
+        expiryQueue = new PriorityQueue<>(Comparator.comparingLong((Expiry expiry) -> expiry.checkAtMillis));
+        pinnedKeys = new ConcurrentHashMap<>();
+        policyLock = new ReentrantLock();
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+        expirations = new LongAdder();
+        openedAtMillis = System.currentTimeMillis();
+        this.dataDirectory = dataDirectory;
+        if (dataDirectory == null) {
+            writeAheadLog = null;
+            checkpointer = null;
+            recoveryStats = new RecoveryStats(0, 0, 0, 0, 0);
+            return;
+        }
+        try {
+            Files.createDirectories(dataDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writeAheadLog = new WriteAheadLog(dataDirectory, fsyncPolicy, fsyncIntervalMillis);
+        recover();
+        globalStore.forEach((key, value) -> {
+            if (orderedKeys != null) orderedKeys.add(key);
+            approximateBytes += entryBytes(key, value);
+        });
+        if (checkpointIntervalMillis > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kvstore-checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (UncheckedIOException e) {
+                    System.out.println("Checkpoint failed: " + e.getMessage());
+                }
+            }, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            checkpointer = null;
+        }
+    }
+
+    private void recover() {
+        long start = System.nanoTime();
+        Path snapshot = SnapshotFile.latest(dataDirectory);
+        long now = System.currentTimeMillis();
+        long snapshotVersion = snapshot == null ? 0
+                : SnapshotFile.load(snapshot, (key, value, expiresAtMillis) -> recoverWrite(key, value, expiresAtMillis, now));
+        long snapshotEntries = globalStore.size();
+        long loaded = System.nanoTime();
+        long[] replayedWrites = new long[1];
+        currentVersion = writeAheadLog.replay(snapshotVersion, (version, key, value, expiresAtMillis) -> {
+            recoverWrite(key, value, expiresAtMillis, now);
+            replayedWrites[0]++;
+        });
+        lastCheckpointVersion = snapshotVersion;
+        recoveryStats = new RecoveryStats(snapshotVersion, snapshotEntries,
+                TimeUnit.NANOSECONDS.toMillis(loaded - start), replayedWrites[0],
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loaded));
+    }
+
+    // A key whose TTL ran out while the store was down is simply not loaded
+    private void recoverWrite(String key, String value, long expiresAtMillis, long now) {
+        if (value == null || (expiresAtMillis != 0 && expiresAtMillis <= now)) {
+            globalStore.remove(key);
+            expiresAt.remove(key);
+            return;
+        }
+        globalStore.put(key, value);
+        if (expiresAtMillis != 0) {
+            expiresAt.put(key, expiresAtMillis);
+            scheduleExpiry(new Expiry(key, expiresAtMillis, expiresAtMillis));
+        } else {
+            expiresAt.remove(key);
+        }
+    }
+
+    public RecoveryStats getRecoveryStats() {
+        return recoveryStats;
+    }
+
+    public CacheStats getCacheStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(),
+                System.currentTimeMillis() - openedAtMillis);
+    }
+
+    // Bounds the store to maxEntries keys and/or maxMemoryBytes of estimated
+    // footprint (0 disables a limit), evicting the keys the policy picks.
+    // Keys written by a still-open transaction are never evicted.
+    public void enableEviction(EvictionPolicy policy, long maxEntries, long maxMemoryBytes) {
+        commitLock.lock();
+        try {
+            policyLock.lock();
+            try {
+                globalStore.forEach((key, value) -> policy.recordInsert(key));
+            } finally {
+                policyLock.unlock();
+            }
+            this.maxEntries = maxEntries;
+            this.maxMemoryBytes = maxMemoryBytes;
+            this.evictionPolicy = policy;
+        } finally {
+            commitLock.unlock();
+        }
+        evictIfNeeded();
+    }
+
+    // Writes a snapshot of the committed store and drops the log it covers.
+    // The image is read through an MVCC snapshot, so commits keep flowing
+    // while it is written; only the log roll happens under the commit lock.
+    public void checkpoint() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        synchronized (checkpointLock) {
+            Transaction snapshot;
+            commitLock.lock();
+            try {
+                if (currentVersion == lastCheckpointVersion) {
+                    return;
+                }
+                snapshot = openSnapshot();
+                writeAheadLog.roll(snapshot.snapshotVersion + 1);
+            } finally {
+                commitLock.unlock();
+            }
+            long version = snapshot.snapshotVersion;
+            try (SnapshotFile.Writer writer = new SnapshotFile.Writer(dataDirectory, version)) {
+                // TTLs are the latest ones; keys rewritten after the snapshot get
+                // theirs from the log replayed on top of it
+                forEachAt(version, writer::put);
+                writer.publish();
+            } finally {
+                closeSnapshot(snapshot);
+            }
+            writeAheadLog.deleteSegmentsBefore(version + 1);
+            SnapshotFile.deleteBefore(dataDirectory, version);
+            lastCheckpointVersion = version;
+        }
+    }
+
+    // Visits every key visible at an open snapshot's version. A key may be
+    // visited twice, with the same value both times.
+    private void forEachAt(long version, SnapshotFile.EntryConsumer consumer) {
+        globalStore.forEach((key, latest) -> {
+            String value = readAt(key, version);
+            if (value != null) consumer.accept(key, value, expiresAt.getOrDefault(key, 0L));
+        });
+        // Keys deleted after the snapshot version may only survive in their chains
+        for (Map.Entry<String, Version> chain : versionChains.entrySet()) {
+            if (chain.getValue().version > version) {
+                String value = readAt(chain.getKey(), version);
+                if (value != null) consumer.accept(chain.getKey(), value, expiresAt.getOrDefault(chain.getKey(), 0L));
+            }
+        }
+    }
+
+    // Streams a consistent snapshot to bootstrap, then hands every later
+    // commit to listener, with no gap or overlap between the two, and
+    // returns the snapshot version. Commits made while the snapshot streams
+    // reach the listener at once, so it must hold them until this returns.
+    public long subscribe(SnapshotFile.EntryConsumer bootstrap, CommitListener listener) {
+        Transaction snapshot;
+        commitLock.lock();
+        try {
+            snapshot = openSnapshot();
+            commitListeners.add(listener);
+        } finally {
+            commitLock.unlock();
+        }
+        try {
+            forEachAt(snapshot.snapshotVersion, bootstrap);
+        } finally {
+            closeSnapshot(snapshot);
+        }
+        return snapshot.snapshotVersion;
+    }
+
+    public void unsubscribe(CommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+    public KVStoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getKeyCount() {
+        return globalStore.size();
+    }
+
+    // Rough heap footprint of the committed entries, the same estimate the
+    // memory bound for eviction is checked against
+    public long getEstimatedMemoryBytes() {
+        return approximateBytes;
+    }
+
+    // Version of the latest commit; commits are numbered from 1 in order
+    public long getCommittedVersion() {
+        return currentVersion;
+    }
+
+    public long getLastCommitVersion() {
+        return threadSessions.get().getLastCommitVersion();
+    }
+
+    public Session openSession() {
+        return new Session();
+    }
+
+    // The methods below run against the calling thread's own session
+
+    public void begin() {
+        threadSessions.get().begin();
+    }
+
+    public void rollback() {
+        threadSessions.get().rollback();
+    }
+
+    public void commit() {
+        threadSessions.get().commit();
+    }
+
+    public void set(String key ,String value) {
+        threadSessions.get().set(key, value);
+    }
+
+    public void set(String key, String value, long ttlMillis) {
+        threadSessions.get().set(key, value, ttlMillis);
+    }
+
+    public String get(String key) {
+        return threadSessions.get().get(key);
+    }
+
+    public int get(String key, ByteBuffer destination) {
+        return threadSessions.get().get(key, destination);
+    }
+
+    public List<String> mget(List<String> keys) {
+        return threadSessions.get().mget(keys);
+    }
+
+    public void mset(Map<String, String> entries) {
+        threadSessions.get().mset(entries);
+    }
+
+    public void mdelete(Collection<String> keys) {
+        threadSessions.get().mdelete(keys);
+    }
+
+    public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+        return threadSessions.get().scan(from, to);
+    }
+
+    public Iterator<Map.Entry<String, String>> scanPrefix(String prefix) {
+        return threadSessions.get().scanPrefix(prefix);
+    }
+
+    public void delete(String key) {
+        threadSessions.get().delete(key);
+    }
+
+    // Registration and pruning agree on the horizon under the same monitor, so a
+    // snapshot can never be handed out below a version that is being pruned.
+    private Transaction openSnapshot() {
+        synchronized (activeTransactions) {
+            Transaction transaction = new Transaction(currentVersion);
+            activeTransactions.add(transaction);
+            return transaction;
+        }
+    }
+
+    private void closeSnapshot(Transaction transaction) {
+        synchronized (activeTransactions) {
+            activeTransactions.remove(transaction);
+        }
+        if (transaction.pinnedKeys != null) {
+            for (String key : transaction.pinnedKeys) {
+                pinnedKeys.computeIfPresent(key, (pinned, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    private String readAt(String key, long snapshotVersion) {
+        String value = globalStore.get(key);
+        for (Version version = versionChains.get(key); version != null && version.version > snapshotVersion;
+             version = version.older) {
+            value = version.previous;
+        }
+        return value;
+    }
+
+    // Validates the write set against commits made after the snapshot (first
+    // committer wins) and applies it as a single new version.
+    // Returns the version the commit was given.
+    private long publish(Map<String, String> writes, Map<String, Long> expiries, long snapshotVersion) {
+        long logPosition;
+        long version;
+        commitLock.lock();
+        try {
+            checkNotHeld(writes);
+            logPosition = apply(writes, expiries, snapshotVersion, false);
+            version = currentVersion;
+        } finally {
+            commitLock.unlock();
+        }
+        awaitDurable(logPosition);
+        if (evictionPolicy != null) {
+            evictIfNeeded();
+        }
+        return version;
+    }
+
+    // Applies a change received from a primary as a single local commit
+    void applyReplicated(Map<String, String> writes, Map<String, Long> expiries) {
+        publish(writes, expiries, Long.MAX_VALUE);
+    }
+
+    // Must hold commitLock. Only the keys the write set touches are visited;
+    // the old value is chained before the new one lands so a concurrent
+    // snapshot read never observes the overwrite. internal marks the deletes
+    // of eviction and expiry. Returns the log position to wait for.
+    private long apply(Map<String, String> writes, Map<String, Long> expiries, long snapshotVersion,
+                       boolean internal) {
+        validate(writes, snapshotVersion);
+        long version = currentVersion + 1;
+        long logPosition = writeAheadLog == null ? 0 : writeAheadLog.append(version, writes, expiries);
+        EvictionPolicy policy = evictionPolicy;
+        if (policy != null) policyLock.lock();
+        try {
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                String key = write.getKey();
+                String value = write.getValue();
+                String previous = globalStore.get(key);
+                Version chained = new Version(version, previous, internal, versionChains.get(key));
+                versionChains.put(key, chained);
+                prunableVersions.add(chained);
+                prunableKeys.add(key);
+                Long deadline = value == null || expiries == null ? null : expiries.get(key);
+                if (value == null) {
+                    globalStore.remove(key);
+                    expiresAt.remove(key);
+                } else {
+                    if (orderedKeys != null) orderedKeys.add(key);
+                    globalStore.put(key, value);
+                    if (deadline != null) {
+                        expiresAt.put(key, deadline);
+                        scheduleExpiry(new Expiry(key, deadline, deadline));
+                    } else {
+                        expiresAt.remove(key);
+                    }
+                }
+                approximateBytes += entryBytes(key, value) - entryBytes(key, previous);
+                if (policy != null) {
+                    if (value == null) policy.recordRemoval(key);
+                    else if (previous == null) policy.recordInsert(key);
+                    else policy.recordAccess(key);
+                }
+            }
+        } finally {
+            if (policy != null) policyLock.unlock();
+        }
+        currentVersion = version;
+        for (CommitListener listener : commitListeners) {
+            listener.onCommit(version, writes, expiries);
+        }
+        prune();
+        return logPosition;
+    }
+
+    // Must hold commitLock. Only versions committed since the snapshot are
+    // walked, and internal ones are skipped, so a blind write of a key that
+    // was evicted or expired meanwhile still commits.
+    private void validate(Map<String, String> writes, long snapshotVersion) {
+        for (String key : writes.keySet()) {
+            for (Version version = versionChains.get(key); version != null && version.version > snapshotVersion;
+                 version = version.older) {
+                if (!version.internal) {
+                    throw new TransactionConflictException("Key " + key + " was modified by a concurrent transaction");
+                }
+            }
+        }
+    }
+
+    // Must hold commitLock
+    private void checkNotHeld(Map<String, String> writes) {
+        if (preparedKeys.isEmpty()) {
+            return;
+        }
+        for (String key : writes.keySet()) {
+            if (preparedKeys.contains(key)) {
+                throw new TransactionConflictException("Key " + key + " is held by a prepared transaction");
+            }
+        }
+    }
+
+    private void awaitDurable(long logPosition) {
+        if (writeAheadLog != null && logPosition > 0) {
+            writeAheadLog.awaitDurable(logPosition);
+        }
+    }
+
+    // Rough heap footprint of one entry: two UTF-16 strings plus map overhead
+    private static long entryBytes(String key, String value) {
+        return value == null ? 0 : 2L * (key.length() + value.length()) + 64;
+    }
+
+    private boolean overLimit() {
+        return (maxEntries > 0 && globalStore.size() > maxEntries)
+               || (maxMemoryBytes > 0 && approximateBytes > maxMemoryBytes);
+    }
+
+    // Deletes policy victims until the store is back within its limits. A
+    // pinned victim is treated as freshly used, and the loop gives up after
+    // too many pinned victims in a row rather than spin.
+    private void evictIfNeeded() {
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == null || !overLimit()) {
+            return;
+        }
+        long logPosition = 0;
+        commitLock.lock();
+        try {
+            int pinnedInARow = 0;
+            while (overLimit() && pinnedInARow < 64) {
+                String victim;
+                policyLock.lock();
+                try {
+                    victim = policy.victim();
+                    if (victim != null && pinnedKeys.containsKey(victim)) {
+                        policy.recordAccess(victim);
+                        pinnedInARow++;
+                        continue;
+                    }
+                } finally {
+                    policyLock.unlock();
+                }
+                if (victim == null) {
+                    break;
+                }
+                pinnedInARow = 0;
+                logPosition = apply(Collections.singletonMap(victim, null), null, Long.MAX_VALUE, true);
+                evictions.increment();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        awaitDurable(logPosition);
+    }
+
+    private boolean isExpired(String key) {
+        Long deadline = expiresAt.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    // Lazy expiry: a key past its deadline reads as absent until the
+    // sweeper gets to delete it
+    private String unexpired(String key, String value) {
+        return value != null && isExpired(key) ? null : value;
+    }
+
+    private void recordRead(String key, boolean hit) {
+        if (hit) hits.increment();
+        else misses.increment();
+        EvictionPolicy policy = evictionPolicy;
+        if (hit && policy != null && policyLock.tryLock()) {
+            try {
+                policy.recordAccess(key);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    private void scheduleExpiry(Expiry expiry) {
+        synchronized (expiryQueue) {
+            expiryQueue.add(expiry);
+            if (sweeper == null) {
+                sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kvstore-expiry-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                sweeper.scheduleWithFixedDelay(() -> {
+                    try {
+                        sweepExpired();
+                    } catch (UncheckedIOException e) {
+                        System.out.println("Expiry sweep failed: " + e.getMessage());
+                    }
+                }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Pops at most SWEEP_BATCH due entries per run, so a burst of expiring
+    // keys is spread over several runs instead of stalling committers
+    private void sweepExpired() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SWEEP_BATCH; i++) {
+            Expiry due;
+            synchronized (expiryQueue) {
+                due = expiryQueue.peek();
+                if (due == null || due.checkAtMillis > now) {
+                    return;
+                }
+                expiryQueue.poll();
+            }
+            if (!Long.valueOf(due.expiresAtMillis).equals(expiresAt.get(due.key))) {
+                continue;
+            }
+            if (pinnedKeys.containsKey(due.key)) {
+                scheduleExpiry(new Expiry(due.key, due.expiresAtMillis, now + SWEEP_INTERVAL_MILLIS));
+                continue;
+            }
+            long logPosition = 0;
+            commitLock.lock();
+            try {
+                if (Long.valueOf(due.expiresAtMillis).equals(expiresAt.get(due.key)) && !pinnedKeys.containsKey(due.key)) {
+                    logPosition = apply(Collections.singletonMap(due.key, null), null, Long.MAX_VALUE, true);
+                    expirations.increment();
+                }
+            } finally {
+                commitLock.unlock();
+            }
+            awaitDurable(logPosition);
+        }
+    }
+
+    private long oldestActiveSnapshot() {
+        synchronized (activeTransactions) {
+            long oldest = currentVersion;
+            for (Transaction transaction : activeTransactions) {
+                oldest = Math.min(oldest, transaction.snapshotVersion);
+            }
+            return oldest;
+        }
+    }
+
+    // Drops chained versions no open snapshot can see any more, oldest first
+    private void prune() {
+        long horizon = oldestActiveSnapshot();
+        while (!prunableVersions.isEmpty() && prunableVersions.peek().version <= horizon) {
+            Version version = prunableVersions.poll();
+            String key = prunableKeys.poll();
+            Version head = versionChains.get(key);
+            if (head == version) {
+                versionChains.remove(key);
+                if (orderedKeys != null && globalStore.get(key) == null) orderedKeys.remove(key);
+            } else {
+                while (head.older != version) {
+                    head = head.older;
+                }
+                head.older = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (expiryQueue) {
+            if (sweeper != null) {
+                sweeper.shutdown();
+            }
+        }
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+    }
+}
+
+// Front end that hash-partitions keys across independent KVStore shards.
+// Each shard is owned by one thread: every operation on it runs on the
+// shard's single-thread executor, so shards never contend with each other.
+// A transaction that wrote to one shard commits there alone; one that wrote
+// to several goes through a two-phase commit driven by the calling thread.
+// Prepared keys are held without waiting: a write that meets one fails with
+// a TransactionConflictException rather than blocking the shard's thread.
+// The decision is not logged, so cross-shard atomicity holds for a running
+// process but not across a crash between the two phases.
+class ShardedKVStore implements Closeable {
+    private final KVStore[] shards;
+    private final ExecutorService[] owners;
+    // Sessions for writes outside a transaction; each is only used by its
+    // shard's owner thread
+    private final KVStore.Session[] autoCommitSessions;
+    private final ThreadLocal<ShardedSession> threadSessions;
+
+    public ShardedKVStore(int shardCount) {
+        this(shardCount, shard -> new KVStore());
+    }
+
+    public ShardedKVStore(int shardCount, IntFunction<KVStore> shardFactory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        shards = new KVStore[shardCount];
+        owners = new ExecutorService[shardCount];
+        autoCommitSessions = new KVStore.Session[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = shardFactory.apply(i);
+            autoCommitSessions[i] = shards[i].openSession();
+            String name = "kvstore-shard-" + i;
+            owners[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        threadSessions = ThreadLocal.withInitial(ShardedSession::new);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(String key) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    // Transaction handle spanning shards. A shard joins the transaction the
+    // first time the session touches one of its keys, and is opened to the
+    // session's current nesting depth.
+    public class ShardedSession {
+        private final Map<Integer, KVStore.Session> touched = new HashMap<>();
+        private final Set<Integer> written = new HashSet<>();
+        private int depth;
+
+        public void begin() {
+            depth++;
+            callAll(forEachTouched(session -> session.begin()));
+        }
+
+        public void rollback() {
+            if (depth == 0) {
+                System.out.println("No active transaction");
+                return;
+            }
+            depth--;
+            try {
+                callAll(forEachTouched(session -> session.rollback()));
+            } finally {
+                if (depth == 0) end();
+            }
+        }
+
+        public void commit() {
+            if (depth == 0) {
+                System.out.println("No active transaction");
+                return;
+            }
+            depth--;
+            if (depth > 0) {
+                callAll(forEachTouched(session -> session.commit()));
+                return;
+            }
+            try {
+                if (written.size() <= 1) {
+                    // At most one shard has writes: it commits on its own and
+                    // the read-only shards just release their snapshots
+                    callAll(forEachTouched(session -> session.commit()));
+                } else {
+                    commitTwoPhase();
+                }
+            } finally {
+                end();
+            }
+        }
+
+        // Every writing shard votes by preparing; any no vote aborts the
+        // shards that voted yes. Read-only shards take no part in the vote.
+        private void commitTwoPhase() {
+            Map<Integer, Future<?>> votes = new HashMap<>();
+            for (Map.Entry<Integer, KVStore.Session> entry : touched.entrySet()) {
+                KVStore.Session session = entry.getValue();
+                votes.put(entry.getKey(), owners[entry.getKey()].submit(
+                        written.contains(entry.getKey()) ? session::prepare : session::commit));
+            }
+            Map<Integer, Callable<Void>> decisions = new HashMap<>();
+            RuntimeException failure = null;
+            for (Map.Entry<Integer, Future<?>> vote : votes.entrySet()) {
+                try {
+                    await(vote.getValue());
+                    if (written.contains(vote.getKey())) {
+                        decisions.put(vote.getKey(), commitPreparedTask(touched.get(vote.getKey())));
+                    }
+                } catch (RuntimeException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) {
+                for (Integer shard : decisions.keySet()) {
+                    KVStore.Session session = touched.get(shard);
+                    decisions.put(shard, () -> {
+                        session.abortPrepared();
+                        return null;
+                    });
+                }
+                callAll(decisions);
+                throw failure;
+            }
+            callAll(decisions);
+        }
 
-    private class Transaction {
-        private Map<String, String> prevStore;
-        private Map<String, String> currentStore;
-        private Set<String> deletedKeys;
+        private Callable<Void> commitPreparedTask(KVStore.Session session) {
+            return () -> {
+                session.commitPrepared();
+                return null;
+            };
+        }
+
+        public void set(String key, String value) {
+            int shard = shardOf(key);
+            call(shard, task(shard, true, session -> {
+                session.set(key, value);
+                return null;
+            }));
+        }
+
+        public String get(String key) {
+            int shard = shardOf(key);
+            return call(shard, task(shard, false, session -> session.get(key)));
+        }
+
+        public void delete(String key) {
+            int shard = shardOf(key);
+            call(shard, task(shard, true, session -> {
+                session.delete(key);
+                return null;
+            }));
+        }
+
+        // Fetches from all the shards involved concurrently
+        public List<String> mget(List<String> keys) {
+            Map<Integer, List<String>> byShard = new HashMap<>();
+            for (String key : keys) {
+                byShard.computeIfAbsent(shardOf(key), shard -> new ArrayList<>()).add(key);
+            }
+            Map<Integer, Callable<List<String>>> tasks = new HashMap<>();
+            for (Map.Entry<Integer, List<String>> group : byShard.entrySet()) {
+                List<String> shardKeys = group.getValue();
+                tasks.put(group.getKey(), task(group.getKey(), false, session -> session.mget(shardKeys)));
+            }
+            Map<Integer, List<String>> fetched = callAll(tasks);
+            Map<String, String> values = new HashMap<>();
+            for (Map.Entry<Integer, List<String>> group : byShard.entrySet()) {
+                List<String> shardValues = fetched.get(group.getKey());
+                for (int i = 0; i < shardValues.size(); i++) {
+                    values.put(group.getValue().get(i), shardValues.get(i));
+                }
+            }
+            List<String> result = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                result.add(values.get(key));
+            }
+            return result;
+        }
+
+        // Outside a transaction each shard applies its part atomically, but
+        // the batch as a whole is not atomic; open a transaction for that
+        public void mset(Map<String, String> entries) {
+            Map<Integer, Map<String, String>> byShard = new HashMap<>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                byShard.computeIfAbsent(shardOf(entry.getKey()), shard -> new HashMap<>())
+                        .put(entry.getKey(), entry.getValue());
+            }
+            Map<Integer, Callable<Void>> tasks = new HashMap<>();
+            for (Map.Entry<Integer, Map<String, String>> group : byShard.entrySet()) {
+                Map<String, String> shardEntries = group.getValue();
+                tasks.put(group.getKey(), task(group.getKey(), true, session -> {
+                    session.mset(shardEntries);
+                    return null;
+                }));
+            }
+            callAll(tasks);
+        }
+
+        // Builds the work to run on the shard's owner thread, joining the
+        // shard to the open transaction on first touch
+        private <T> Callable<T> task(int shard, boolean writes, Function<KVStore.Session, T> operation) {
+            if (depth == 0) {
+                KVStore.Session autoCommit = autoCommitSessions[shard];
+                return () -> operation.apply(autoCommit);
+            }
+            if (writes) written.add(shard);
+            KVStore.Session existing = touched.get(shard);
+            if (existing != null) {
+                return () -> operation.apply(existing);
+            }
+            KVStore.Session joined = shards[shard].openSession();
+            touched.put(shard, joined);
+            int levels = depth;
+            return () -> {
+                for (int i = 0; i < levels; i++) joined.begin();
+                return operation.apply(joined);
+            };
+        }
 
-        Transaction() {
-            this.prevStore = new HashMap<>();
-            this.currentStore = new HashMap<>();
-            this.deletedKeys = new HashSet<>();
+        private Map<Integer, Callable<Void>> forEachTouched(Consumer<KVStore.Session> step) {
+            Map<Integer, Callable<Void>> tasks = new HashMap<>();
+            for (Map.Entry<Integer, KVStore.Session> entry : touched.entrySet()) {
+                KVStore.Session session = entry.getValue();
+                tasks.put(entry.getKey(), () -> {
+                    step.accept(session);
+                    return null;
+                });
+            }
+            return tasks;
         }
 
-        Transaction(Map<String, String> prev) {
-            this.prevStore = new HashMap<>(prev);
-            this.currentStore = new HashMap<>();
-            this.deletedKeys = new HashSet<>();
+        private void end() {
+            touched.clear();
+            written.clear();
         }
     }
 
-    private Stack<Transaction> transactionStack;
-    private Map<String, String> globalStore;
+    private <T> T call(int shard, Callable<T> task) {
+        return await(owners[shard].submit(task));
+    }
 
-    public KVStore() {
-        transactionStack = new Stack<>();
-        globalStore = new HashMap<>();
+    // Runs one task per shard concurrently and waits for all of them, so a
+    // step over several shards costs one round trip rather than one each.
+    // The first failure is rethrown once every task has finished.
+    private <T> Map<Integer, T> callAll(Map<Integer, Callable<T>> tasks) {
+        Map<Integer, Future<T>> futures = new HashMap<>();
+        for (Map.Entry<Integer, Callable<T>> task : tasks.entrySet()) {
+            futures.put(task.getKey(), owners[task.getKey()].submit(task.getValue()));
+        }
+        Map<Integer, T> results = new HashMap<>();
+        RuntimeException failure = null;
+        for (Map.Entry<Integer, Future<T>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), await(future.getValue()));
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
     }
 
-    public void begin() {
-        if(!transactionStack.isEmpty()) {
-            Map<String, String> lastStore = transactionStack.peek().prevStore;
-            lastStore.putAll(transactionStack.peek().currentStore);
-            lastStore.remove(transactionStack.peek().deletedKeys);
-            transactionStack.add(new Transaction(lastStore));
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
         }
-        else
-            transactionStack.add(new Transaction(globalStore));
+    }
+
+    public ShardedSession openSession() {
+        return new ShardedSession();
+    }
+
+    public void begin() {
+        threadSessions.get().begin();
     }
 
     public void rollback() {
-        if (!transactionStack.isEmpty()) transactionStack.pop();
-        else {
-            System.out.println("No active transaction");
-        }
+        threadSessions.get().rollback();
     }
 
     public void commit() {
-        if (!transactionStack.isEmpty()) {
-            globalStore.putAll(transactionStack.peek().currentStore);
-            globalStore.remove(transactionStack.peek().deletedKeys);
+        threadSessions.get().commit();
+    }
+
+    public void set(String key, String value) {
+        threadSessions.get().set(key, value);
+    }
+
+    public String get(String key) {
+        return threadSessions.get().get(key);
+    }
+
+    public void delete(String key) {
+        threadSessions.get().delete(key);
+    }
+
+    public List<String> mget(List<String> keys) {
+        return threadSessions.get().mget(keys);
+    }
+
+    public void mset(Map<String, String> entries) {
+        threadSessions.get().mset(entries);
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService owner : owners) {
+            owner.shutdown();
+        }
+        for (int i = 0; i < shards.length; i++) {
+            try {
+                owners[i].awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shards[i].close();
         }
-        else {
-            System.out.println("No active transaction");
+    }
+}
+
+// Measures ShardedKVStore write throughput as the shard count grows. Client
+// threads mix single-key writes, which commit on one shard, with two-key
+// transactions that usually span shards and go through two-phase commit.
+// Usage: ShardedKVStoreLoadGenerator [seconds] [clients] [shardCounts...]
+class ShardedKVStoreLoadGenerator {
+    private static final int KEY_SPACE = 100_000;
+    private static final int CROSS_SHARD_PERCENT = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int[] shardCounts = {1, 4, 16, 64};
+        if (args.length > 2) {
+            shardCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                shardCounts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int shardCount : shardCounts) {
+            run(shardCount, clients, seconds);
         }
     }
 
-    public void set(String key ,String value) {
-        if (!transactionStack.isEmpty()) {
-            transactionStack.peek().currentStore.put(key, value);
-            transactionStack.peek().deletedKeys.remove(key);
+    private static void run(int shardCount, int clients, int seconds) throws InterruptedException {
+        try (ShardedKVStore store = new ShardedKVStore(shardCount)) {
+            LongAdder operations = new LongAdder();
+            LongAdder conflicts = new LongAdder();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] threads = new Thread[clients];
+            for (int t = 0; t < clients; t++) {
+                threads[t] = new Thread(() -> {
+                    ShardedKVStore.ShardedSession session = store.openSession();
+                    Random random = new Random();
+                    while (System.nanoTime() < deadline) {
+                        String key = "key" + random.nextInt(KEY_SPACE);
+                        if (random.nextInt(100) >= CROSS_SHARD_PERCENT) {
+                            try {
+                                session.set(key, "v");
+                                operations.increment();
+                            } catch (TransactionConflictException e) {
+                                conflicts.increment();
+                            }
+                            continue;
+                        }
+                        session.begin();
+                        session.set(key, "v");
+                        session.set("key" + random.nextInt(KEY_SPACE), "v");
+                        try {
+                            session.commit();
+                            operations.add(2);
+                        } catch (TransactionConflictException e) {
+                            conflicts.increment();
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.printf("shards=%d clients=%d ops/sec=%,d conflicts=%d%n", shardCount, clients,
+                    operations.sum() / seconds, conflicts.sum());
+        }
+    }
+}
+
+// Compares the cost of a short transaction under the old copy-on-begin
+// design, where begin copied the whole committed map, with the MVCC store,
+// where begin only records a snapshot version. Each transaction writes one
+// key and commits. 10M keys need a large heap, e.g. -Xmx8g.
+// Usage: KVStoreTransactionBenchmark [seconds per size] [key counts...]
+class KVStoreTransactionBenchmark {
+    private static final int LOAD_BATCH = 10_000;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int[] keyCounts = {10_000, 1_000_000, 10_000_000};
+        if (args.length > 1) {
+            keyCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                keyCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int keyCount : keyCounts) {
+            copyOnBegin(keyCount, seconds);
+            mvcc(keyCount, seconds);
+        }
+    }
+
+    private static void copyOnBegin(int keyCount, int seconds) {
+        Map<String, String> committed = new HashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            committed.put("key" + i, "value" + i);
+        }
+        Random random = new Random(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+        int transactions = 0;
+        while (transactions < 3 || System.nanoTime() < deadline) {
+            Map<String, String> transaction = new HashMap<>(committed);
+            transaction.put("key" + random.nextInt(keyCount), "changed");
+            committed = transaction;
+            transactions++;
+        }
+        report("copy-on-begin", keyCount, transactions, System.nanoTime() - start);
+    }
+
+    private static void mvcc(int keyCount, int seconds) {
+        KVStore store = new KVStore();
+        KVStore.Session session = store.openSession();
+        Map<String, String> batch = new HashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            batch.put("key" + i, "value" + i);
+            if (batch.size() == LOAD_BATCH || i == keyCount - 1) {
+                session.mset(batch);
+                batch = new HashMap<>();
+            }
+        }
+        Random random = new Random(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+        int transactions = 0;
+        while (transactions < 3 || System.nanoTime() < deadline) {
+            session.begin();
+            session.set("key" + random.nextInt(keyCount), "changed");
+            session.commit();
+            transactions++;
+        }
+        report("mvcc", keyCount, transactions, System.nanoTime() - start);
+        store.close();
+    }
+
+    private static void report(String design, int keyCount, int transactions, long nanos) {
+        System.out.printf("%-13s keys=%,11d transactions=%,9d avg=%,12.1fus%n", design, keyCount, transactions,
+                nanos / 1e3 / transactions);
+    }
+}
+
+// Loads the same keys into a store on each storage engine and compares the
+// heap they retain and the GC pauses a mixed read/write load causes. Pause
+// times come from the collectors' GC notifications; concurrent cycles are
+// left out as they do not stop the application. For numbers free of the
+// other engine's garbage, run one engine per JVM.
+// Usage: StorageEngineBenchmark [keys] [seconds] [heap|offheap...]
+class StorageEngineBenchmark {
+    private static final int LOAD_BATCH = 10_000;
+    private static final int WRITE_PERCENT = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<String> engines = args.length > 2 ? Arrays.asList(args).subList(2, args.length)
+                : Arrays.asList("heap", "offheap");
+        for (String engine : engines) {
+            run(engine, engine.equals("offheap") ? new OffHeapStorageEngine(keys) : new HeapStorageEngine(), keys,
+                    seconds);
+            System.gc();
+        }
+    }
+
+    private static void run(String name, StorageEngine engine, int keys, int seconds) throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        KVStore store = new KVStore(engine);
+        KVStore.Session session = store.openSession();
+        Map<String, String> batch = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            batch.put("key" + i, value(i));
+            if (batch.size() == LOAD_BATCH || i == keys - 1) {
+                session.mset(batch);
+                batch = new HashMap<>();
+            }
+        }
+        System.gc();
+        Thread.sleep(200);
+        long heapUsed = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+
+        List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+        List<NotificationEmitter> emitters = new ArrayList<>();
+        NotificationListener listener = (notification, handback) -> {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!info.getGcAction().contains("concurrent") && !info.getGcName().contains("Concurrent")) {
+                pauses.add(info.getGcInfo().getDuration());
+            }
+        };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            NotificationEmitter emitter = (NotificationEmitter) collector;
+            emitter.addNotificationListener(listener, null, null);
+            emitters.add(emitter);
+        }
+        Random random = new Random(1);
+        long operations = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            int key = random.nextInt(keys);
+            if (random.nextInt(100) < WRITE_PERCENT) {
+                session.set("key" + key, value(random.nextInt()));
+            } else {
+                session.get("key" + key);
+            }
+            operations++;
+        }
+        // Notifications are delivered asynchronously
+        Thread.sleep(500);
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        store.close();
+
+        long[] sorted;
+        synchronized (pauses) {
+            sorted = pauses.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        System.out.printf("engine=%-7s keys=%,d heapUsed=%,dMB ops/sec=%,d gcPauses=%d p50=%dms p99=%dms max=%dms%n",
+                name, keys, heapUsed >> 20, operations / seconds, sorted.length, percentile(sorted, 0.50),
+                percentile(sorted, 0.99), sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    // About 100 bytes, so values outweigh the per-entry overhead
+    private static String value(int seed) {
+        StringBuilder value = new StringBuilder(100);
+        while (value.length() < 100) {
+            value.append(seed).append('-');
+        }
+        return value.toString();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
+
+// Times the batch operations against the same work done one key at a
+// time, both as autocommit calls and inside a transaction. Outside a
+// transaction a batch write commits one version where the loop commits one
+// per key. Inside one the nest is a few layers deep, as mget resolves
+// across layers.
+// Usage: KVStoreBatchBenchmark [keys] [batch size] [rounds]
+class KVStoreBatchBenchmark {
+    private static final int NESTING = 3;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+        KVStore store = new KVStore();
+        KVStore.Session session = store.openSession();
+        Map<String, String> load = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            load.put("key" + i, "value" + i);
+        }
+        session.mset(load);
+        // The first pass warms up the JIT
+        for (int pass = 0; pass < 2; pass++) {
+            for (boolean inTransaction : new boolean[]{false, true}) {
+                run(session, keys, batchSize, rounds, inTransaction, pass == 1);
+            }
+        }
+        store.close();
+    }
+
+    private static void run(KVStore.Session session, int keys, int batchSize, int rounds, boolean inTransaction,
+                            boolean print) {
+        Random random = new Random(1);
+        long[] batchNanos = new long[3];
+        long[] loopNanos = new long[3];
+        for (int round = 0; round < rounds; round++) {
+            List<String> batchKeys = new ArrayList<>(batchSize);
+            Map<String, String> entries = new HashMap<>();
+            for (int i = 0; i < batchSize; i++) {
+                String key = "key" + random.nextInt(keys);
+                batchKeys.add(key);
+                entries.put(key, "v" + round);
+            }
+            if (inTransaction) {
+                for (int depth = 0; depth < NESTING; depth++) {
+                    session.begin();
+                    session.set("key" + random.nextInt(keys), "nested");
+                }
+            }
+            // Whichever read goes second finds the keys in cache, so alternate
+            long start;
+            for (int order = 0; order < 2; order++) {
+                if ((round + order) % 2 == 0) {
+                    start = System.nanoTime();
+                    session.mget(batchKeys);
+                    batchNanos[0] += System.nanoTime() - start;
+                } else {
+                    start = System.nanoTime();
+                    for (String key : batchKeys) {
+                        session.get(key);
+                    }
+                    loopNanos[0] += System.nanoTime() - start;
+                }
+            }
+            start = System.nanoTime();
+            session.mset(entries);
+            batchNanos[1] += System.nanoTime() - start;
+            start = System.nanoTime();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                session.set(entry.getKey(), entry.getValue());
+            }
+            loopNanos[1] += System.nanoTime() - start;
+            start = System.nanoTime();
+            session.mdelete(batchKeys);
+            batchNanos[2] += System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String key : batchKeys) {
+                session.delete(key);
+            }
+            loopNanos[2] += System.nanoTime() - start;
+            if (inTransaction) {
+                for (int depth = 0; depth < NESTING; depth++) {
+                    session.rollback();
+                }
+            } else {
+                session.mset(entries);
+            }
+        }
+        if (!print) {
+            return;
+        }
+        String[] operations = {"get", "set", "delete"};
+        for (int i = 0; i < operations.length; i++) {
+            System.out.printf("%-14s %-6s batch=%d batched=%,8.2fus looped=%,8.2fus%n",
+                    inTransaction ? "transaction" : "autocommit", operations[i], batchSize,
+                    batchNanos[i] / 1e3 / rounds, loopNanos[i] / 1e3 / rounds);
+        }
+    }
+}
+
+// TCP front end for a KVStore speaking a line protocol, one command per line:
+//   SET key value | GET key | DELETE key | BEGIN | COMMIT | ROLLBACK
+// The value is the rest of the line after the key. Replies follow RESP:
+// +OK, $length and the bytes for a value, $-1 for a missing key, and
+// -ERR or -CONFLICT for failures. Every connection owns a session, so its
+// transaction state lives exactly as long as the connection.
+//
+// Connections are spread over a fixed set of event loops, each a thread
+// with its own selector. Every complete command in the read buffer runs
+// before the replies go out in a single write, so a pipelining client pays
+// one round trip per batch. Buffers are direct, and GET copies the value
+// from the storage engine into them without building a String. A commit
+// waiting on the write-ahead log holds up the other connections of its loop.
+class KVStoreServer implements Closeable {
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    // Replies past this much pending output wait for the socket to drain
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private static final byte[] SET = "SET".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GET = "GET".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DELETE = "DELETE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEL = "DEL".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BEGIN = "BEGIN".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMIT = "COMMIT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ROLLBACK = "ROLLBACK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final KVStore store;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final Thread acceptor;
+    private volatile boolean running;
+
+    public KVStoreServer(KVStore store, int port) throws IOException {
+        this(store, port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KVStoreServer(KVStore store, int port, int eventLoopCount) throws IOException {
+        this.store = store;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("kvstore-server-loop-" + i);
+        }
+        acceptor = new Thread(this::accept, "kvstore-server-acceptor");
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        running = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.thread.start();
+        }
+        acceptor.start();
+    }
+
+    // Hands accepted connections to the event loops round robin
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop eventLoop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+                eventLoop.accepted.add(channel);
+                eventLoop.selector.wakeup();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final KVStore.Session session;
+        // Both buffers stay in write mode between events
+        private ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        private ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+        Connection(SocketChannel channel, KVStore.Session session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        // Scratch space shared by the loop's connections
+        private byte[] text = new byte[256];
+        private ByteBuffer value = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerAccepted();
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        serve(key);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Event loop failed: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                disconnect(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+
+        private void registerAccepted() throws IOException {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel, store.openSession()));
+            }
+        }
+
+        private void serve(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    if (connection.channel.read(connection.in) < 0) {
+                        disconnect(key);
+                        return;
+                    }
+                }
+                drive(connection, key);
+            } catch (IOException | RuntimeException e) {
+                disconnect(key);
+            }
+        }
+
+        // Runs buffered commands and writes their replies until either the
+        // input holds no complete command or the socket stops taking output
+        private void drive(Connection connection, SelectionKey key) throws IOException {
+            while (true) {
+                boolean more = execute(connection);
+                ByteBuffer out = connection.out;
+                out.flip();
+                connection.channel.write(out);
+                boolean drained = !out.hasRemaining();
+                out.compact();
+                if (!drained) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (!more) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        // Returns true if it stopped early with complete commands still buffered
+        private boolean execute(Connection connection) {
+            ByteBuffer in = connection.in;
+            in.flip();
+            boolean more = false;
+            while (true) {
+                int end = indexOf(in, in.position(), in.limit(), (byte) '\n');
+                if (end == in.limit()) {
+                    break;
+                }
+                if (connection.out.position() >= FLUSH_THRESHOLD) {
+                    more = true;
+                    break;
+                }
+                int lineEnd = end > in.position() && in.get(end - 1) == '\r' ? end - 1 : end;
+                command(connection, in, in.position(), lineEnd);
+                in.position(end + 1);
+            }
+            in.compact();
+            if (!more && !in.hasRemaining()) {
+                // A single line fills the buffer: grow it or give up on the client
+                if (in.capacity() >= MAX_LINE_BYTES) {
+                    throw new IllegalStateException("Line too long");
+                }
+                ByteBuffer larger = ByteBuffer.allocateDirect(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                connection.in = larger;
+            }
+            return more;
+        }
+
+        private void command(Connection connection, ByteBuffer in, int start, int end) {
+            int nameEnd = indexOf(in, start, end, (byte) ' ');
+            int keyStart = nameEnd + 1;
+            int keyEnd = nameEnd < end ? indexOf(in, keyStart, end, (byte) ' ') : end;
+            boolean hasKey = keyStart < end && keyEnd > keyStart;
+            KVStore.Session session = connection.session;
+            try {
+                if (matches(in, start, nameEnd, SET)) {
+                    if (!hasKey || keyEnd >= end) {
+                        error(connection, "wrong number of arguments");
+                        return;
+                    }
+                    session.set(decode(in, keyStart, keyEnd), decode(in, keyEnd + 1, end));
+                    reply(connection, OK);
+                } else if (matches(in, start, nameEnd, GET)) {
+                    if (!hasKey || keyEnd != end) {
+                        error(connection, "wrong number of arguments");
+                        return;
+                    }
+                    value(connection, session, decode(in, keyStart, keyEnd));
+                } else if (matches(in, start, nameEnd, DELETE) || matches(in, start, nameEnd, DEL)) {
+                    if (!hasKey || keyEnd != end) {
+                        error(connection, "wrong number of arguments");
+                        return;
+                    }
+                    session.delete(decode(in, keyStart, keyEnd));
+                    reply(connection, OK);
+                } else if (matches(in, start, end, BEGIN)) {
+                    session.begin();
+                    reply(connection, OK);
+                } else if (matches(in, start, end, COMMIT)) {
+                    if (!session.inTransaction()) {
+                        error(connection, "no transaction");
+                        return;
+                    }
+                    session.commit();
+                    reply(connection, OK);
+                } else if (matches(in, start, end, ROLLBACK)) {
+                    if (!session.inTransaction()) {
+                        error(connection, "no transaction");
+                        return;
+                    }
+                    session.rollback();
+                    reply(connection, OK);
+                } else {
+                    error(connection, "unknown command");
+                }
+            } catch (TransactionConflictException e) {
+                reply(connection, ("-CONFLICT " + e.getMessage() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IllegalStateException e) {
+                error(connection, e.getMessage());
+            }
+        }
+
+        // Copies the value into the loop's direct scratch buffer first, since
+        // its length has to precede it on the wire
+        private void value(Connection connection, KVStore.Session session, String key) {
+            int length;
+            while (true) {
+                value.clear();
+                try {
+                    length = session.get(key, value);
+                    break;
+                } catch (BufferOverflowException e) {
+                    value = ByteBuffer.allocateDirect(value.capacity() * 2);
+                }
+            }
+            if (length < 0) {
+                reply(connection, NIL);
+                return;
+            }
+            value.flip();
+            ByteBuffer out = reserve(connection, length + 16);
+            out.put((byte) '$');
+            putDecimal(out, length);
+            out.put(CRLF).put(value).put(CRLF);
+        }
+
+        private void error(Connection connection, String message) {
+            reply(connection, ("-ERR " + message + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void reply(Connection connection, byte[] bytes) {
+            reserve(connection, bytes.length).put(bytes);
+        }
+
+        private ByteBuffer reserve(Connection connection, int bytes) {
+            ByteBuffer out = connection.out;
+            if (out.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                larger.put(out);
+                connection.out = larger;
+                return larger;
+            }
+            return out;
+        }
+
+        private String decode(ByteBuffer in, int start, int end) {
+            int length = end - start;
+            if (length > text.length) text = new byte[Math.max(length, text.length * 2)];
+            in.get(start, text, 0, length);
+            return new String(text, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Rolls back whatever transaction the client left open so its
+        // snapshot and pinned keys are released
+        private void disconnect(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+            while (connection.session.inTransaction()) {
+                connection.session.rollback();
+            }
+        }
+    }
+
+    // Position of the first target byte in [from, to), or to if there is none
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte target) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == target) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // Case-insensitive comparison of an ASCII token against a command name
+    private static boolean matches(ByteBuffer buffer, int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            int b = buffer.get(start + i);
+            if (b != name[i] && b != name[i] + ('a' - 'A')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putDecimal(ByteBuffer out, int value) {
+        if (value >= 10) {
+            putDecimal(out, value / 10);
+        }
+        out.put((byte) ('0' + value % 10));
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+            acceptor.join(1000);
+        } catch (IOException ignored) {
+            // Closing anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+    }
+}
+
+// Loopback load test for KVStoreServer. A single selector thread drives
+// every connection, keeping depth requests in flight on each (half GET,
+// half SET over a fixed key space), and times every reply. The first
+// second is warm-up and is left out of the report.
+// Usage: KVStoreServerBenchmark [connections] [seconds] [depth]
+class KVStoreServerBenchmark {
+    private static final int KEY_SPACE = 10_000;
+
+    private static final class Client {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        // Send times of the requests in flight, oldest at head
+        private final long[] sentAt;
+        private int head;
+        private int inFlight;
+
+        Client(SocketChannel channel, int depth) {
+            this.channel = channel;
+            this.sentAt = new long[depth];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        byte[][] gets = new byte[KEY_SPACE][];
+        byte[][] sets = new byte[KEY_SPACE][];
+        for (int i = 0; i < KEY_SPACE; i++) {
+            gets[i] = ("GET key" + i + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            sets[i] = ("SET key" + i + " value-" + i + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        try (KVStoreServer server = new KVStoreServer(new KVStore(), 0);
+             Selector selector = Selector.open()) {
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            Random random = new Random();
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Client client = new Client(channel, depth);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(1);
+            long deadline = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+            for (Client client : clients) {
+                send(client, selector, depth, gets, sets, random);
+            }
+            long[] latencies = new long[1 << 20];
+            int count = 0;
+            while (System.nanoTime() < deadline) {
+                selector.select(100);
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Client client = (Client) key.attachment();
+                    if (key.isReadable()) {
+                        client.channel.read(client.in);
+                        client.in.flip();
+                        long now = System.nanoTime();
+                        while (client.inFlight > 0 && skipReply(client.in)) {
+                            if (now >= measureFrom) {
+                                if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                                latencies[count++] = now - client.sentAt[client.head];
+                            }
+                            client.head = (client.head + 1) % depth;
+                            client.inFlight--;
+                        }
+                        client.in.compact();
+                    }
+                    send(client, selector, depth, gets, sets, random);
+                }
+            }
+            for (Client client : clients) {
+                client.channel.close();
+            }
+            Arrays.sort(latencies, 0, count);
+            System.out.printf("connections=%d depth=%d requests/sec=%,d p50=%dus p99=%dus p999=%dus%n",
+                    connections, depth, count / seconds, percentile(latencies, count, 0.50),
+                    percentile(latencies, count, 0.99), percentile(latencies, count, 0.999));
+        }
+    }
+
+    // Tops the client up to depth requests in flight and writes them out
+    private static void send(Client client, Selector selector, int depth, byte[][] gets, byte[][] sets,
+                             Random random) throws IOException {
+        long now = System.nanoTime();
+        while (client.inFlight < depth) {
+            int key = random.nextInt(KEY_SPACE);
+            client.out.put(random.nextBoolean() ? gets[key] : sets[key]);
+            client.sentAt[(client.head + client.inFlight) % depth] = now;
+            client.inFlight++;
+        }
+        client.out.flip();
+        client.channel.write(client.out);
+        boolean drained = !client.out.hasRemaining();
+        client.out.compact();
+        client.channel.keyFor(selector).interestOps(
+                drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    // Consumes one complete reply, or returns false and leaves the buffer
+    // untouched if only part of it has arrived
+    private static boolean skipReply(ByteBuffer in) {
+        int start = in.position();
+        int lineEnd = -1;
+        for (int i = start; i + 1 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                lineEnd = i;
+                break;
+            }
+        }
+        if (lineEnd < 0) {
+            return false;
+        }
+        int next = lineEnd + 2;
+        if (in.get(start) == '$' && in.get(start + 1) != '-') {
+            int length = 0;
+            for (int i = start + 1; i < lineEnd; i++) {
+                length = length * 10 + (in.get(i) - '0');
+            }
+            next += length + 2;
+            if (next > in.limit()) {
+                return false;
+            }
+        }
+        in.position(next);
+        return true;
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.min(count - 1, (int) (count * fraction))]);
+    }
+}
+
+// One unit of the change feed: a commit, a batch of snapshot entries, the
+// end of the snapshot, or a heartbeat carrying the primary's latest version.
+// Deletes have a null value; expiries is null when no write has a TTL. On
+// the wire: [byte type][long version][long committedAtMillis][int count]
+// then [int keyLength][key][int valueLength][value][long expiresAtMillis]
+// per write, with a valueLength of -1 for a delete and 0 for no TTL.
+class Change {
+    static final byte SNAPSHOT_ENTRIES = 1;
+    static final byte SNAPSHOT_END = 2;
+    static final byte COMMIT = 3;
+    static final byte HEARTBEAT = 4;
+
+    final byte type;
+    final long version;
+    final long committedAtMillis;
+    final Map<String, String> writes;
+    final Map<String, Long> expiries;
+
+    Change(byte type, long version, long committedAtMillis, Map<String, String> writes, Map<String, Long> expiries) {
+        this.type = type;
+        this.version = version;
+        this.committedAtMillis = committedAtMillis;
+        this.writes = writes;
+        this.expiries = expiries;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(version);
+        out.writeLong(committedAtMillis);
+        out.writeInt(writes.size());
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            byte[] key = write.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.write(key);
+            if (write.getValue() == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] value = write.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            Long expiresAt = expiries == null ? null : expiries.get(write.getKey());
+            out.writeLong(expiresAt == null ? 0 : expiresAt);
+        }
+    }
+
+    static Change readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long version = in.readLong();
+        long committedAtMillis = in.readLong();
+        int count = in.readInt();
+        Map<String, String> writes = new HashMap<>();
+        Map<String, Long> expiries = null;
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            String keyText = new String(key, StandardCharsets.UTF_8);
+            int valueLength = in.readInt();
+            String value = null;
+            if (valueLength >= 0) {
+                byte[] bytes = new byte[valueLength];
+                in.readFully(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            writes.put(keyText, value);
+            long expiresAt = in.readLong();
+            if (expiresAt != 0) {
+                if (expiries == null) expiries = new HashMap<>();
+                expiries.put(keyText, expiresAt);
+            }
+        }
+        return new Change(type, version, committedAtMillis, writes, expiries);
+    }
+
+    static Change commit(long version, Map<String, String> writes, Map<String, Long> expiries) {
+        return new Change(COMMIT, version, System.currentTimeMillis(), new HashMap<>(writes),
+                expiries == null ? null : new HashMap<>(expiries));
+    }
+}
+
+// Read-only copy of a primary KVStore, fed either in process or over a
+// loopback socket from a ReplicationServer. It starts from a snapshot of
+// the primary and then applies the primary's commits in order, each as a
+// single commit of its own store, so reads always see whole transactions.
+// Reads may trail the primary; a caller that needs its own writes passes
+// the commit version the primary gave it and the read waits for it.
+class Replica implements Closeable {
+    private static final int SNAPSHOT_BATCH = 1000;
+
+    private final KVStore store = new KVStore();
+    private final BlockingQueue<Change> pending = new LinkedBlockingQueue<>();
+    private final Object progress = new Object();
+    private final Thread applier;
+    private volatile boolean running = true;
+    // Primary versions: the latest applied here, and the latest heard of
+    private volatile long appliedVersion;
+    private volatile long knownVersion;
+
+    private final KVStore primary;
+    private final CommitListener listener;
+    private final Socket socket;
+
+    // Subscribes to a primary in the same process
+    public Replica(KVStore primary) {
+        this.primary = primary;
+        this.socket = null;
+        this.listener = (version, writes, expiries) -> pending.add(Change.commit(version, writes, expiries));
+        Map<String, String> batch = new HashMap<>();
+        Map<String, Long> batchExpiries = new HashMap<>();
+        long snapshotVersion = primary.subscribe((key, value, expiresAtMillis) -> {
+            batch.put(key, value);
+            if (expiresAtMillis != 0) batchExpiries.put(key, expiresAtMillis);
+            if (batch.size() >= SNAPSHOT_BATCH) applyBatch(batch, batchExpiries);
+        }, listener);
+        applyBatch(batch, batchExpiries);
+        appliedVersion = snapshotVersion;
+        knownVersion = snapshotVersion;
+        applier = startApplier();
+    }
+
+    // Connects to a ReplicationServer; the snapshot arrives through the same
+    // stream as the commits, so reads are partial until it has been applied
+    public Replica(InetSocketAddress primaryAddress) throws IOException {
+        this.primary = null;
+        this.listener = null;
+        this.socket = new Socket(primaryAddress.getAddress(), primaryAddress.getPort());
+        socket.setTcpNoDelay(true);
+        applier = startApplier();
+        Thread reader = new Thread(this::receive, "kvstore-replica-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void applyBatch(Map<String, String> batch, Map<String, Long> batchExpiries) {
+        if (!batch.isEmpty()) {
+            store.applyReplicated(batch, batchExpiries.isEmpty() ? null : batchExpiries);
         }
-        else {
-            globalStore.put(key, value);
+        batch.clear();
+        batchExpiries.clear();
+    }
+
+    private void receive() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (running) {
+                Change change = Change.readFrom(in);
+                if (change.type != Change.SNAPSHOT_ENTRIES) {
+                    knownVersion = Math.max(knownVersion, change.version);
+                }
+                if (change.type != Change.HEARTBEAT) {
+                    pending.add(change);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Replication stream closed: " + e.getMessage());
+            }
         }
     }
 
+    private Thread startApplier() {
+        Thread thread = new Thread(() -> {
+            while (running) {
+                Change change;
+                try {
+                    change = pending.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!change.writes.isEmpty()) {
+                    store.applyReplicated(change.writes, change.expiries);
+                }
+                if (change.type != Change.SNAPSHOT_ENTRIES) {
+                    appliedVersion = change.version;
+                    synchronized (progress) {
+                        progress.notifyAll();
+                    }
+                }
+            }
+        }, "kvstore-replica-applier");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
     public String get(String key) {
-        if(!transactionStack.isEmpty() && transactionStack.peek().deletedKeys.contains(key)) {
-            return "";
+        return store.get(key);
+    }
+
+    // Read-your-writes: waits until the replica has applied minVersion
+    public String get(String key, long minVersion, long timeoutMillis) {
+        if (!awaitVersion(minVersion, timeoutMillis)) {
+            throw new IllegalStateException("Replica did not reach version " + minVersion + " within "
+                                            + timeoutMillis + " ms");
+        }
+        return store.get(key);
+    }
+
+    public List<String> mget(List<String> keys) {
+        return store.mget(keys);
+    }
+
+    public boolean awaitVersion(long version, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (progress) {
+            while (appliedVersion < version) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    progress.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getAppliedVersion() {
+        return appliedVersion;
+    }
+
+    // Commits the primary has made, as far as this replica knows, that are
+    // not yet visible here
+    public long getLagVersions() {
+        long latest = primary != null ? primary.getCommittedVersion() : knownVersion;
+        return Math.max(0, latest - appliedVersion);
+    }
+
+    // How long the oldest change still waiting to be applied has been
+    // committed on the primary; 0 when nothing is waiting
+    public long getLagMillis() {
+        Change oldest = pending.peek();
+        return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.committedAtMillis);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (primary != null) {
+            primary.unsubscribe(listener);
         }
-        if (!transactionStack.isEmpty() && transactionStack.peek().currentStore.containsKey(key)) {
-            return transactionStack.peek().currentStore.get(key);
-        } else if (!transactionStack.isEmpty() && transactionStack.peek().prevStore.containsKey(key)) {
-            return transactionStack.peek().prevStore.get(key);
-        } else if(globalStore.containsKey(key)){
-            return globalStore.get(key);
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
         }
-        return "";
+        applier.interrupt();
+        store.close();
     }
+}
 
-    public void delete(String key) {
-        if (!transactionStack.isEmpty()) {
-            transactionStack.peek().currentStore.remove(key);
-            transactionStack.peek().deletedKeys.add(key);
+// Serves a primary's change feed to Replicas over loopback sockets. Each
+// replica gets a thread that streams a snapshot in batches, then the commits
+// in order, batching whatever has queued up into one flush and sending a
+// heartbeat with the latest version when the primary is idle.
+class ReplicationServer implements Closeable {
+    private static final int SNAPSHOT_BATCH = 1000;
+    private static final long HEARTBEAT_MILLIS = 100;
+
+    private final KVStore primary;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Socket> replicas = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public ReplicationServer(KVStore primary, int port) throws IOException {
+        this.primary = primary;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "kvstore-replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                replicas.add(socket);
+                Thread feed = new Thread(() -> feed(socket), "kvstore-replication-feed");
+                feed.setDaemon(true);
+                feed.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                }
+            }
         }
-        else {
-            globalStore.remove(key);
+    }
+
+    private void feed(Socket socket) {
+        BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+        CommitListener listener = (version, writes, expiries) -> queue.add(Change.commit(version, writes, expiries));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024))) {
+            Map<String, String> batch = new HashMap<>();
+            Map<String, Long> batchExpiries = new HashMap<>();
+            long snapshotVersion;
+            try {
+                snapshotVersion = primary.subscribe((key, value, expiresAtMillis) -> {
+                    batch.put(key, value);
+                    if (expiresAtMillis != 0) batchExpiries.put(key, expiresAtMillis);
+                    if (batch.size() >= SNAPSHOT_BATCH) sendSnapshotBatch(out, batch, batchExpiries);
+                }, listener);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            sendSnapshotBatch(out, batch, batchExpiries);
+            new Change(Change.SNAPSHOT_END, snapshotVersion, System.currentTimeMillis(), Collections.emptyMap(), null)
+                    .writeTo(out);
+            out.flush();
+            List<Change> drained = new ArrayList<>();
+            while (running) {
+                Change change = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (change == null) {
+                    new Change(Change.HEARTBEAT, primary.getCommittedVersion(), System.currentTimeMillis(),
+                            Collections.emptyMap(), null).writeTo(out);
+                } else {
+                    change.writeTo(out);
+                    queue.drainTo(drained);
+                    for (Change next : drained) {
+                        next.writeTo(out);
+                    }
+                    drained.clear();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The replica went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            primary.unsubscribe(listener);
+            replicas.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    private static void sendSnapshotBatch(DataOutputStream out, Map<String, String> batch,
+                                          Map<String, Long> batchExpiries) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            new Change(Change.SNAPSHOT_ENTRIES, 0, System.currentTimeMillis(), batch, batchExpiries).writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batch.clear();
+        batchExpiries.clear();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        for (Socket replica : replicas) {
+            try {
+                replica.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
         }
     }
 }
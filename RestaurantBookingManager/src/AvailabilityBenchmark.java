@@ -0,0 +1,112 @@
+import exception.InvalidRequestException;
+import model.AvailabilityPage;
+import model.AvailabilityQuery;
+import model.Booking;
+import model.Restaurant;
+import model.Schedule;
+import repository.BookingRepo;
+import service.BookingService;
+import service.RestaurantService;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills a city of restaurants with bookings, then times availability searches
+ * and checks every result against a scan of all restaurants.
+ * Arguments: restaurants in the city, bookings, page size.
+ */
+public class AvailabilityBenchmark {
+
+    private static final String[] CUISINES = {"Italian", "Chinese", "Mexican", "Indian", "Thai", "French"};
+
+    public static void main(String[] args) {
+        int restaurants = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int bookings = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+        int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        BookingService bookingService = BookingService.getInstance();
+        RestaurantService restaurantService = RestaurantService.getInstance();
+        Random random = new Random(1);
+        List<Schedule> schedule = new ArrayList<>();
+        for (DayOfWeek day : DayOfWeek.values()) {
+            schedule.add(new Schedule(day, LocalTime.of(11, 0), LocalTime.of(23, 0)));
+        }
+        for (int i = 0; i < restaurants; i++) {
+            restaurantService.saveRestaurant(new Restaurant("R" + i, i % 10 == 0 ? "Elsewhere" : "City",
+                    "Area" + random.nextInt(50), "Restaurant " + i, 10.0 * (1 + random.nextInt(20)), schedule,
+                    Arrays.asList(CUISINES[random.nextInt(CUISINES.length)], CUISINES[random.nextInt(CUISINES.length)]),
+                    1 + random.nextInt(8)));
+        }
+        LocalDateTime day = LocalDateTime.of(2024, 3, 29, 0, 0);
+        long booked = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < bookings; i++) {
+            // Evenings are busiest
+            int startMinute = 17 * 60 + (int) (random.nextGaussian() * 90);
+            startMinute = Math.max(11 * 60, Math.min(21 * 60, startMinute));
+            try {
+                bookingService.createBooking(new Booking("B" + i, "R" + random.nextInt(restaurants), "U",
+                        day.plusMinutes(startMinute), day.plusMinutes(startMinute + 60 + random.nextInt(60))));
+                booked++;
+            } catch (InvalidRequestException e) {
+                // Restaurant full
+            }
+        }
+        System.out.printf("restaurants=%d booked=%d of %d in %d ms%n", restaurants, booked, bookings,
+                (System.nanoTime() - start) / 1_000_000);
+
+        AvailabilityQuery[] queries = {
+                new AvailabilityQuery("City", null, null, null, day.plusHours(19), day.plusHours(21), 1),
+                new AvailabilityQuery("City", null, "Thai", 80.0, day.plusHours(18), day.plusHours(20), 1),
+                new AvailabilityQuery("City", "Area7", null, null, day.plusHours(17), day.plusHours(19), 3),
+                new AvailabilityQuery(null, null, "French", null, day.plusHours(12), day.plusHours(13), 1),
+        };
+        for (AvailabilityQuery query : queries) {
+            // Warm up, then time the first page and the whole result paged through
+            restaurantService.searchAvailableRestaurants(query, 0, pageSize);
+            start = System.nanoTime();
+            AvailabilityPage page = restaurantService.searchAvailableRestaurants(query, 0, pageSize);
+            long firstPage = System.nanoTime() - start;
+            List<Restaurant> all = new ArrayList<>(page.getRestaurants());
+            start = System.nanoTime();
+            while (page.hasNext()) {
+                page = restaurantService.searchAvailableRestaurants(query, page.getNextCursor(), pageSize);
+                all.addAll(page.getRestaurants());
+            }
+            long rest = System.nanoTime() - start;
+            List<Restaurant> expected = scan(query, restaurants);
+            System.out.printf("city=%s area=%s cuisine=%s cost<=%s %s-%s tables=%d: first page %.2f ms, " +
+                              "%d results in %.1f ms more%n", query.getCity(), query.getArea(), query.getCuisine(),
+                    query.getMaxCostOfTwo(), query.getStartTime().toLocalTime(), query.getEndTime().toLocalTime(),
+                    query.getTables(), firstPage / 1e6, all.size(), rest / 1e6);
+            if (!all.equals(expected)) {
+                throw new IllegalStateException("Search returned " + all.size() + " restaurants, scan found " +
+                                                expected.size());
+            }
+        }
+    }
+
+    private static List<Restaurant> scan(AvailabilityQuery query, int restaurants) {
+        RestaurantService restaurantService = RestaurantService.getInstance();
+        BookingRepo bookingRepo = BookingRepo.getInstance();
+        List<Restaurant> result = new ArrayList<>();
+        for (int i = 0; i < restaurants; i++) {
+            Restaurant restaurant = restaurantService.findRestaurantById("R" + i);
+            if ((query.getCity() == null || query.getCity().equals(restaurant.getCity())) &&
+                (query.getArea() == null || query.getArea().equals(restaurant.getArea())) &&
+                (query.getCuisine() == null || restaurant.getCuisines().contains(query.getCuisine())) &&
+                (query.getMaxCostOfTwo() == null || restaurant.getCostOfTwo() <= query.getMaxCostOfTwo()) &&
+                bookingRepo.findPeakOccupancy(restaurant.getId(), query.getStartTime(), query.getEndTime()) +
+                query.getTables() <= restaurant.getNumOfTables()) {
+                result.add(restaurant);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+import exception.InvalidRequestException;
+import model.Booking;
+import model.Restaurant;
+import model.Schedule;
+import repository.BookingRepo;
+import service.BookingService;
+import service.RestaurantService;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Books random tables from many threads at once, then checks from the saved
+ * bookings that no restaurant holds more tables than it has at any minute.
+ * Arguments: threads, restaurants, days, tables per restaurant, seconds.
+ */
+public class BookingBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int restaurants = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 7;
+        int tables = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        BookingService bookingService = BookingService.getInstance();
+        RestaurantService restaurantService = RestaurantService.getInstance();
+        List<Schedule> schedule = new ArrayList<>();
+        for (DayOfWeek day : DayOfWeek.values()) {
+            schedule.add(new Schedule(day, LocalTime.of(9, 0), LocalTime.of(23, 0)));
+        }
+        for (int i = 0; i < restaurants; i++) {
+            restaurantService.saveRestaurant(new Restaurant("R" + i, "City", "Area" + (i % 10), "Restaurant " + i,
+                    50.0, schedule, Collections.singletonList("Italian"), tables));
+        }
+        LocalDate firstDay = LocalDate.of(2024, 3, 25);
+
+        LongAdder booked = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                Random random = new Random(thread);
+                long attempt = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end) {
+                    // Skewed towards the first restaurants, so a few are hot
+                    int restaurant = (int) (restaurants * Math.pow(random.nextDouble(), 3));
+                    int length = 30 + random.nextInt(120);
+                    int startMinute = 9 * 60 + random.nextInt(14 * 60 - length);
+                    LocalDateTime day = firstDay.plusDays(random.nextInt(days)).atStartOfDay();
+                    Booking booking = new Booking(thread + "-" + attempt++, "R" + restaurant, "U" + thread,
+                            day.plusMinutes(startMinute), day.plusMinutes(startMinute + length));
+                    try {
+                        bookingService.createBooking(booking);
+                        booked.increment();
+                    } catch (InvalidRequestException e) {
+                        rejected.increment();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        BookingRepo bookingRepo = BookingRepo.getInstance();
+        long saved = 0;
+        int overbooked = 0;
+        for (int i = 0; i < restaurants; i++) {
+            for (int day = 0; day < days; day++) {
+                int[] occupied = new int[24 * 60];
+                for (Booking booking : bookingRepo.findBookingsByRestaurantAndDate("R" + i, firstDay.plusDays(day))) {
+                    int from = booking.getStartTime().toLocalTime().toSecondOfDay() / 60;
+                    int to = booking.getEndTime().toLocalTime().toSecondOfDay() / 60;
+                    for (int minute = from; minute < to; minute++) {
+                        if (++occupied[minute] == tables + 1) {
+                            overbooked++;
+                        }
+                    }
+                    saved++;
+                }
+            }
+        }
+        System.out.printf("threads=%d restaurants=%d attempts=%.0f/s booked=%d rejected=%d saved=%d overbooked=%d%n",
+                threads, restaurants, (booked.sum() + rejected.sum()) / elapsed, booked.sum(), rejected.sum(),
+                saved, overbooked);
+        if (saved != booked.sum() || overbooked != 0) {
+            throw new IllegalStateException("Bookings exceed restaurant capacity");
+        }
+    }
+}
@@ -1,3 +1,4 @@
+import model.AvailabilityQuery;
 import model.Booking;
 import model.Restaurant;
 import model.Schedule;
@@ -74,5 +75,8 @@ public class Main {
             System.out.println("Error creating booking 3: " + e.getMessage());
         }
 
+        AvailabilityQuery query = new AvailabilityQuery("New York", null, "Italian", null,
+                LocalDateTime.of(2024, 3, 28, 11, 0), LocalDateTime.of(2024, 3, 28, 13, 0), 1);
+        System.out.println(restaurantService.searchAvailableRestaurants(query, 0, 10).toString());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+import model.Restaurant;
+import model.RestaurantQuery;
+import model.Schedule;
+import service.RestaurantService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Compares multi-criteria bitmap queries with the single-criterion list lookup
+ * followed by filtering in application code, and checks both find the same
+ * restaurants. Arguments: restaurants, repetitions per query.
+ */
+public class RestaurantQueryBenchmark {
+
+    private static final String[] CUISINES = {"Italian", "Chinese", "Mexican", "Indian", "Thai", "French", "Japanese",
+            "Korean", "Greek", "Spanish", "Lebanese", "Turkish", "Vietnamese", "American", "Ethiopian", "Persian"};
+
+    public static void main(String[] args) {
+        int restaurants = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        RestaurantService restaurantService = RestaurantService.getInstance();
+        Random random = new Random(1);
+        List<Schedule> schedule = Collections.emptyList();
+        long start = System.nanoTime();
+        for (int i = 0; i < restaurants; i++) {
+            int cuisine = random.nextInt(CUISINES.length);
+            int otherCuisine = (cuisine + 1 + random.nextInt(CUISINES.length - 1)) % CUISINES.length;
+            restaurantService.saveRestaurant(new Restaurant("R" + i, "City" + random.nextInt(20),
+                    "Area" + random.nextInt(1000), "Restaurant " + i, 10.0 * (1 + random.nextInt(20)), schedule,
+                    Arrays.asList(CUISINES[cuisine], CUISINES[otherCuisine]), 1 + random.nextInt(8)));
+        }
+        System.out.printf("restaurants=%d saved in %d ms%n", restaurants, (System.nanoTime() - start) / 1_000_000);
+
+        run("city AND cuisine AND cost<=50", repetitions,
+                () -> restaurantService.searchRestaurants(RestaurantQuery.and(RestaurantQuery.where("city", "City3"),
+                        RestaurantQuery.where("cuisine", "Thai"), RestaurantQuery.costOfTwoAtMost(50.0))),
+                () -> filter(restaurantService.searchRestaurants("city", "City3"),
+                        restaurant -> restaurant.getCuisines().contains("Thai") && restaurant.getCostOfTwo() <= 50.0));
+        run("city AND area", repetitions,
+                () -> restaurantService.searchRestaurants(RestaurantQuery.and(RestaurantQuery.where("city", "City3"),
+                        RestaurantQuery.where("area", "Area42"))),
+                () -> filter(restaurantService.searchRestaurants("city", "City3"),
+                        restaurant -> restaurant.getArea().equals("Area42")));
+        run("city AND (cuisine OR cuisine)", repetitions,
+                () -> restaurantService.searchRestaurants(RestaurantQuery.and(RestaurantQuery.where("city", "City3"),
+                        RestaurantQuery.or(RestaurantQuery.where("cuisine", "Thai"),
+                                RestaurantQuery.where("cuisine", "Greek")))),
+                () -> filter(restaurantService.searchRestaurants("city", "City3"),
+                        restaurant -> restaurant.getCuisines().contains("Thai") ||
+                                      restaurant.getCuisines().contains("Greek")));
+        run("cuisine AND cost=100", repetitions,
+                () -> restaurantService.searchRestaurants(RestaurantQuery.and(RestaurantQuery.where("cuisine", "Thai"),
+                        RestaurantQuery.where("costOfTwo", 100.0))),
+                () -> filter(restaurantService.searchRestaurants("cuisine", "Thai"),
+                        restaurant -> restaurant.getCostOfTwo() == 100.0));
+    }
+
+    private static List<Restaurant> filter(List<Restaurant> restaurants, Predicate<Restaurant> predicate) {
+        List<Restaurant> result = new ArrayList<>();
+        for (Restaurant restaurant : restaurants) {
+            if (predicate.test(restaurant)) {
+                result.add(restaurant);
+            }
+        }
+        return result;
+    }
+
+    private static void run(String name, int repetitions, Supplier<List<Restaurant>> bitmaps,
+                            Supplier<List<Restaurant>> lists) {
+        List<Restaurant> expected = lists.get();
+        if (!new ArrayList<>(bitmaps.get()).equals(expected)) {
+            throw new IllegalStateException(name + ": bitmap query and list filtering disagree");
+        }
+        // Bitmaps are timed to a count plus the first page, which is all a caller paging through needs
+        long bitmapNanos = Long.MAX_VALUE;
+        long listNanos = Long.MAX_VALUE;
+        int count = 0;
+        for (int i = 0; i < repetitions; i++) {
+            long start = System.nanoTime();
+            List<Restaurant> result = bitmaps.get();
+            count = result.size();
+            for (Restaurant restaurant : result.subList(0, Math.min(20, count))) {
+                restaurant.getId();
+            }
+            bitmapNanos = Math.min(bitmapNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            lists.get();
+            listNanos = Math.min(listNanos, System.nanoTime() - start);
+        }
+        System.out.printf("%-32s matches=%6d bitmaps=%7.3f ms lists=%7.3f ms%n", name, count, bitmapNanos / 1e6,
+                listNanos / 1e6);
+    }
+}
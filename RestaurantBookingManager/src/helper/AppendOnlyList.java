@@ -0,0 +1,67 @@
+package helper;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * List that is only ever appended to, stored in fixed-size pages that are never
+ * copied. Appends are synchronized and O(1); reads take no lock, because a value
+ * is written before the volatile size that makes it visible.
+ */
+public class AppendOnlyList<T> {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private volatile Object[][] pages = new Object[1][];
+    private volatile int size;
+
+    // Returns the index the value was stored at
+    public synchronized int add(T value) {
+        int index = size;
+        int page = index >>> PAGE_BITS;
+        Object[][] current = pages;
+        if (page == current.length) {
+            current = Arrays.copyOf(current, 2 * current.length);
+        }
+        if (current[page] == null) {
+            current[page] = new Object[PAGE_SIZE];
+        }
+        current[page][index & (PAGE_SIZE - 1)] = value;
+        pages = current;
+        size = index + 1;
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return (T) pages[index >>> PAGE_BITS][index & (PAGE_SIZE - 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Read-only view of the values appended so far
+    public List<T> snapshot() {
+        int length = size;
+        return new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                if (index >= length) {
+                    throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + length);
+                }
+                return AppendOnlyList.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return length;
+            }
+        };
+    }
+}
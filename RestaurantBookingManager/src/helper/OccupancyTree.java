@@ -0,0 +1,124 @@
+package helper;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Segment tree over the minutes of one day, supporting range-add and range-max.
+ * Holds the number of tables occupied at every minute, so both reserving and
+ * checking the peak occupancy of a time window cost O(log SLOTS). A node's children
+ * are only created once a booking covers part of its range, so a day with a few
+ * bookings keeps a few dozen nodes. Updates and queries are synchronized, so the
+ * tree can be read while bookings are saved.
+ */
+public class OccupancyTree {
+
+    public static final int SLOTS = 24 * 60;
+
+    // Each node is three ints: the peak of its range including its own pending add,
+    // the add applied to its whole range and not pushed down, and the index of its
+    // left child (the right child follows it), or 0 while the range is uniform
+    private static final int NODE = 3;
+    private static final int MAX = 0;
+    private static final int PENDING = 1;
+    private static final int CHILDREN = 2;
+
+    private int[] nodes = new int[16 * NODE];
+    private int size = NODE;
+
+    // First minute a booking starting at time occupies
+    public static int startSlot(LocalDateTime time) {
+        return time.toLocalTime().toSecondOfDay() / 60;
+    }
+
+    // Minute after the last one a booking ending at time occupies, counted from
+    // the start of the day the booking starts on; callers keep it within SLOTS
+    public static int endSlot(LocalDateTime start, LocalDateTime end) {
+        Duration sinceMidnight = Duration.between(start.toLocalDate().atStartOfDay(), end);
+        long seconds = sinceMidnight.getSeconds() + (sinceMidnight.getNano() > 0 ? 1 : 0);
+        return (int) ((seconds + 59) / 60);
+    }
+
+    public synchronized void add(int from, int to, int delta) {
+        if (from < to) {
+            add(0, 0, SLOTS, from, to, delta);
+        }
+    }
+
+    public synchronized int max(int from, int to) {
+        return from < to ? max(0, 0, SLOTS, from, to) : 0;
+    }
+
+    // Calls action with every slot in [from, to) whose occupancy is at least threshold,
+    // skipping subtrees whose peak is below it
+    public synchronized void forEachAtLeast(int from, int to, int threshold, IntConsumer action) {
+        if (from < to) {
+            forEachAtLeast(0, 0, SLOTS, from, to, threshold, 0, action);
+        }
+    }
+
+    private void add(int node, int low, int high, int from, int to, int delta) {
+        if (to <= low || high <= from) {
+            return;
+        }
+        if (from <= low && high <= to) {
+            nodes[node + MAX] += delta;
+            nodes[node + PENDING] += delta;
+            return;
+        }
+        int left = nodes[node + CHILDREN];
+        if (left == 0) {
+            left = split(node);
+        }
+        int mid = (low + high) >>> 1;
+        add(left, low, mid, from, to, delta);
+        add(left + NODE, mid, high, from, to, delta);
+        nodes[node + MAX] = nodes[node + PENDING] + Math.max(nodes[left + MAX], nodes[left + NODE + MAX]);
+    }
+
+    // Creates the two children of a uniform node, both starting at zero below its pending add
+    private int split(int node) {
+        if (size + 2 * NODE > nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+        }
+        int left = size;
+        size += 2 * NODE;
+        nodes[node + CHILDREN] = left;
+        return left;
+    }
+
+    private int max(int node, int low, int high, int from, int to) {
+        int left = nodes[node + CHILDREN];
+        if (left == 0 || from <= low && high <= to) {
+            return nodes[node + MAX];
+        }
+        int mid = (low + high) >>> 1;
+        int peak = Integer.MIN_VALUE;
+        if (from < mid) {
+            peak = max(left, low, mid, from, to);
+        }
+        if (mid < to) {
+            peak = Math.max(peak, max(left + NODE, mid, high, from, to));
+        }
+        return nodes[node + PENDING] + peak;
+    }
+
+    private void forEachAtLeast(int node, int low, int high, int from, int to, int threshold, int added,
+                                IntConsumer action) {
+        if (to <= low || high <= from || added + nodes[node + MAX] < threshold) {
+            return;
+        }
+        int left = nodes[node + CHILDREN];
+        if (left == 0) {
+            for (int slot = Math.max(low, from); slot < Math.min(high, to); slot++) {
+                action.accept(slot);
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        forEachAtLeast(left, low, mid, from, to, threshold, added + nodes[node + PENDING], action);
+        forEachAtLeast(left + NODE, mid, high, from, to, threshold, added + nodes[node + PENDING], action);
+    }
+}
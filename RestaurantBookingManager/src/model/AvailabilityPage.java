@@ -0,0 +1,31 @@
+package model;
+
+import java.util.List;
+
+public class AvailabilityPage {
+    List<Restaurant> restaurants;
+    // Cursor to pass for the next page, or -1 when there are no more results
+    int nextCursor;
+
+    public AvailabilityPage(List<Restaurant> restaurants, int nextCursor) {
+        this.restaurants = restaurants;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Restaurant> getRestaurants() {
+        return restaurants;
+    }
+
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AvailabilityPage{" + "restaurants=" + restaurants + ", nextCursor=" + nextCursor + '}';
+    }
+}
@@ -0,0 +1,56 @@
+package model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Restaurants with free tables for a time window. A null attribute matches any
+ * restaurant; tables is how many tables must be free at once for the whole window.
+ */
+public class AvailabilityQuery {
+    String city;
+    String area;
+    String cuisine;
+    Double maxCostOfTwo;
+    LocalDateTime startTime;
+    LocalDateTime endTime;
+    int tables;
+
+    public AvailabilityQuery(String city, String area, String cuisine, Double maxCostOfTwo, LocalDateTime startTime,
+                             LocalDateTime endTime, int tables) {
+        this.city = city;
+        this.area = area;
+        this.cuisine = cuisine;
+        this.maxCostOfTwo = maxCostOfTwo;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.tables = tables;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public String getArea() {
+        return area;
+    }
+
+    public String getCuisine() {
+        return cuisine;
+    }
+
+    public Double getMaxCostOfTwo() {
+        return maxCostOfTwo;
+    }
+
+    public LocalDateTime getStartTime() {
+        return startTime;
+    }
+
+    public LocalDateTime getEndTime() {
+        return endTime;
+    }
+
+    public int getTables() {
+        return tables;
+    }
+}
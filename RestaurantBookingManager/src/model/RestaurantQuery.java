@@ -0,0 +1,72 @@
+package model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Condition on restaurant attributes, built from single-criterion matches with the
+ * criteria names of RestaurantRepo.searchRestaurants and combined with and/or.
+ * An and of no queries matches every restaurant, an or of no queries none.
+ */
+public class RestaurantQuery {
+
+    public enum Operator {
+        EQUALS, AT_MOST, AND, OR
+    }
+
+    Operator operator;
+    String criteria;
+    Object value;
+    List<RestaurantQuery> queries;
+
+    private RestaurantQuery(Operator operator, String criteria, Object value, List<RestaurantQuery> queries) {
+        this.operator = operator;
+        this.criteria = criteria;
+        this.value = value;
+        this.queries = queries;
+    }
+
+    public static RestaurantQuery where(String criteria, Object value) {
+        return new RestaurantQuery(Operator.EQUALS, criteria.toLowerCase(), value, List.of());
+    }
+
+    public static RestaurantQuery costOfTwoAtMost(Double maxCostOfTwo) {
+        return new RestaurantQuery(Operator.AT_MOST, "costoftwo", maxCostOfTwo, List.of());
+    }
+
+    public static RestaurantQuery and(RestaurantQuery... queries) {
+        return new RestaurantQuery(Operator.AND, null, null, Arrays.asList(queries));
+    }
+
+    public static RestaurantQuery or(RestaurantQuery... queries) {
+        return new RestaurantQuery(Operator.OR, null, null, Arrays.asList(queries));
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public String getCriteria() {
+        return criteria;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public List<RestaurantQuery> getQueries() {
+        return queries;
+    }
+
+    @Override
+    public String toString() {
+        switch (operator) {
+            case EQUALS:
+                return criteria + "=" + value;
+            case AT_MOST:
+                return criteria + "<=" + value;
+            default:
+                return operator.toString() + queries;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package repository;
+
+import helper.OccupancyTree;
+
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AvailabilityRepo {
+
+    private static AvailabilityRepo instance;
+
+    // For each date, one bitmap per minute of the day over restaurant ordinals, with a
+    // restaurant's bit set once it has no free table at that minute. Bookings are never
+    // cancelled, so bits are only ever set
+    private Map<LocalDate, BitSet[]> fullRestaurantsByDate = new ConcurrentHashMap<>();
+
+    private AvailabilityRepo() {
+    }
+
+    public static synchronized AvailabilityRepo getInstance() {
+        if (instance == null) {
+            instance = new AvailabilityRepo();
+        }
+        return instance;
+    }
+
+    public void markFull(LocalDate date, int slot, int restaurantOrdinal) {
+        BitSet full = fullRestaurantsByDate.computeIfAbsent(date, k -> newSlots())[slot];
+        synchronized (full) {
+            full.set(restaurantOrdinal);
+        }
+    }
+
+    // Restaurants with no free table at some minute in [fromSlot, toSlot) of the date
+    public BitSet findFullRestaurants(LocalDate date, int fromSlot, int toSlot) {
+        BitSet result = new BitSet();
+        BitSet[] slots = fullRestaurantsByDate.get(date);
+        if (slots == null) {
+            return result;
+        }
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            synchronized (slots[slot]) {
+                result.or(slots[slot]);
+            }
+        }
+        return result;
+    }
+
+    private static BitSet[] newSlots() {
+        BitSet[] slots = new BitSet[OccupancyTree.SLOTS];
+        for (int slot = 0; slot < slots.length; slot++) {
+            slots[slot] = new BitSet();
+        }
+        return slots;
+    }
+}
@@ -1,22 +1,30 @@
 package repository;
 
+import helper.OccupancyTree;
 import model.Booking;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
 public class BookingRepo {
 
     private static BookingRepo instance;
 
-    private Map<String, Booking> bookingById = new HashMap<>();
-    private Map<String, Map<LocalDate, List<Booking>>> bookingByRestaurantAndDate = new HashMap<>();
-    private Map<String, List<Booking>> bookingByUser = new HashMap<>();
+    // Callers serialize saves for the same restaurant and date, but saves for
+    // other dates and all reads run concurrently, so every index is concurrent
+    // and lists are read through a copy taken under the list's lock
+    private Map<String, Booking> bookingById = new ConcurrentHashMap<>();
+    private Map<String, Map<LocalDate, List<Booking>>> bookingByRestaurantAndDate = new ConcurrentHashMap<>();
+    private Map<String, List<Booking>> bookingByUser = new ConcurrentHashMap<>();
+    private Map<String, Map<LocalDate, OccupancyTree>> occupancyByRestaurantAndDate = new ConcurrentHashMap<>();
 
     private BookingRepo() {
     }
 
-    public static BookingRepo getInstance() {
+    public static synchronized BookingRepo getInstance() {
         if (instance == null) {
             instance = new BookingRepo();
         }
@@ -27,15 +35,15 @@ public class BookingRepo {
         bookingById.put(booking.getId(), booking);
         String restaurantId = booking.getRestaurant();
         LocalDate date = booking.getStartTime().toLocalDate();
-        Map<LocalDate, List<Booking>> restaurantBookings = bookingByRestaurantAndDate.getOrDefault(restaurantId, new HashMap<>());
-        List<Booking> bookingsOnDate = restaurantBookings.getOrDefault(date, new ArrayList<>());
-        bookingsOnDate.add(booking);
-        restaurantBookings.put(date, bookingsOnDate);
-        bookingByRestaurantAndDate.put(restaurantId, restaurantBookings);
-        String userId = booking.getUser();
-        List<Booking> userBookings = bookingByUser.getOrDefault(userId, new ArrayList<>());
-        userBookings.add(booking);
-        bookingByUser.put(userId, userBookings);
+        bookingByRestaurantAndDate.computeIfAbsent(restaurantId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(date, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(booking);
+        bookingByUser.computeIfAbsent(booking.getUser(), k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(booking);
+        occupancyByRestaurantAndDate.computeIfAbsent(restaurantId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(date, k -> new OccupancyTree())
+                .add(OccupancyTree.startSlot(booking.getStartTime()),
+                     OccupancyTree.endSlot(booking.getStartTime(), booking.getEndTime()), 1);
     }
 
     public Booking findBookingById(String id) {
@@ -44,10 +52,36 @@ public class BookingRepo {
 
     public List<Booking> findBookingsByRestaurantAndDate(String restaurantId, LocalDate date) {
         Map<LocalDate, List<Booking>> restaurantBookings = bookingByRestaurantAndDate.getOrDefault(restaurantId, Collections.emptyMap());
-        return restaurantBookings.getOrDefault(date, Collections.emptyList());
+        return copyOf(restaurantBookings.getOrDefault(date, Collections.emptyList()));
+    }
+
+    public int findPeakOccupancy(String restaurantId, LocalDateTime startTime, LocalDateTime endTime) {
+        OccupancyTree occupancy = occupancyByRestaurantAndDate.getOrDefault(restaurantId, Collections.emptyMap())
+                .get(startTime.toLocalDate());
+        if (occupancy == null) {
+            return 0;
+        }
+        return occupancy.max(OccupancyTree.startSlot(startTime), OccupancyTree.endSlot(startTime, endTime));
+    }
+
+    // Calls action with every minute slot of the window at which all tables are taken
+    public void forEachFullSlot(String restaurantId, LocalDateTime startTime, LocalDateTime endTime, int tables,
+                                IntConsumer action) {
+        OccupancyTree occupancy = occupancyByRestaurantAndDate.getOrDefault(restaurantId, Collections.emptyMap())
+                .get(startTime.toLocalDate());
+        if (occupancy != null) {
+            occupancy.forEachAtLeast(OccupancyTree.startSlot(startTime), OccupancyTree.endSlot(startTime, endTime),
+                    tables, action);
+        }
     }
 
     public List<Booking> findBookingsByUser(String userId) {
-        return bookingByUser.getOrDefault(userId, Collections.emptyList());
+        return copyOf(bookingByUser.getOrDefault(userId, Collections.emptyList()));
+    }
+
+    private static List<Booking> copyOf(List<Booking> bookings) {
+        synchronized (bookings) {
+            return new ArrayList<>(bookings);
+        }
     }
 }
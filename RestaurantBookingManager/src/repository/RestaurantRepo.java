@@ -1,55 +1,214 @@
 package repository;
 
+import helper.AppendOnlyList;
+import helper.RoaringBitmap;
 import model.Restaurant;
+import model.RestaurantQuery;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RestaurantRepo {
 
     private static RestaurantRepo instance;
 
-    private Map<String, Restaurant> restaurantById = new HashMap<>();
-    private Map<String, List<Restaurant>> restaurantByCity = new HashMap<>();
-    private Map<String, List<Restaurant>> restaurantByArea = new HashMap<>();
-    private Map<String, List<Restaurant>> restaurantByCuisine = new HashMap<>();
-    private Map<Double, List<Restaurant>> restaurantByCostOfTwo = new HashMap<>();
+    // Restaurants are saved rarely and searched constantly, so the lists are
+    // append-only and searches never block. Every restaurant also gets a dense
+    // ordinal, its position in restaurantByOrdinal, for bitmaps over restaurants
+    private Map<String, Restaurant> restaurantById = new ConcurrentHashMap<>();
+    private Map<String, Integer> ordinalById = new ConcurrentHashMap<>();
+    private AppendOnlyList<Restaurant> restaurantByOrdinal = new AppendOnlyList<>();
+    private Map<String, AppendOnlyList<Restaurant>> restaurantByCity = new ConcurrentHashMap<>();
+    private Map<String, AppendOnlyList<Restaurant>> restaurantByArea = new ConcurrentHashMap<>();
+    private Map<String, AppendOnlyList<Restaurant>> restaurantByCuisine = new ConcurrentHashMap<>();
+    private Map<Double, AppendOnlyList<Restaurant>> restaurantByCostOfTwo = new ConcurrentHashMap<>();
+
+    // The same attributes as compressed bitmaps of ordinals, so multi-criteria
+    // queries are answered by AND/OR of bitmaps. Queries read them under the read
+    // lock and get back a bitmap of their own
+    private final ReadWriteLock ordinalsLock = new ReentrantReadWriteLock();
+    private Map<String, RoaringBitmap> ordinalsByCity = new HashMap<>();
+    private Map<String, RoaringBitmap> ordinalsByArea = new HashMap<>();
+    private Map<String, RoaringBitmap> ordinalsByCuisine = new HashMap<>();
+    private NavigableMap<Double, RoaringBitmap> ordinalsByCostOfTwo = new TreeMap<>();
 
     private RestaurantRepo() {
     }
 
-    public static RestaurantRepo getInstance() {
+    public static synchronized RestaurantRepo getInstance() {
         if (instance == null) {
             instance = new RestaurantRepo();
         }
         return instance;
     }
 
-    public void saveRestaurant(Restaurant restaurant) {
+    public synchronized void saveRestaurant(Restaurant restaurant) {
         restaurantById.put(restaurant.getId(), restaurant);
-        restaurantByCity.computeIfAbsent(restaurant.getCity(), k -> new ArrayList<>()).add(restaurant);
-        restaurantByArea.computeIfAbsent(restaurant.getArea(), k -> new ArrayList<>()).add(restaurant);
+        int ordinal = restaurantByOrdinal.add(restaurant);
+        ordinalById.put(restaurant.getId(), ordinal);
+        ordinalsLock.writeLock().lock();
+        try {
+            ordinalsByCity.computeIfAbsent(restaurant.getCity(), k -> new RoaringBitmap()).add(ordinal);
+            ordinalsByArea.computeIfAbsent(restaurant.getArea(), k -> new RoaringBitmap()).add(ordinal);
+            for (String cuisine : restaurant.getCuisines()) {
+                ordinalsByCuisine.computeIfAbsent(cuisine, k -> new RoaringBitmap()).add(ordinal);
+            }
+            ordinalsByCostOfTwo.computeIfAbsent(restaurant.getCostOfTwo(), k -> new RoaringBitmap()).add(ordinal);
+        } finally {
+            ordinalsLock.writeLock().unlock();
+        }
+        restaurantByCity.computeIfAbsent(restaurant.getCity(), k -> new AppendOnlyList<>()).add(restaurant);
+        restaurantByArea.computeIfAbsent(restaurant.getArea(), k -> new AppendOnlyList<>()).add(restaurant);
         for (String cuisine : restaurant.getCuisines()) {
-            restaurantByCuisine.computeIfAbsent(cuisine, k -> new ArrayList<>()).add(restaurant);
+            restaurantByCuisine.computeIfAbsent(cuisine, k -> new AppendOnlyList<>()).add(restaurant);
         }
-        restaurantByCostOfTwo.computeIfAbsent(restaurant.getCostOfTwo(), k -> new ArrayList<>()).add(restaurant);
+        restaurantByCostOfTwo.computeIfAbsent(restaurant.getCostOfTwo(), k -> new AppendOnlyList<>()).add(restaurant);
     }
 
     public Restaurant findRestaurantById(String id) {
         return restaurantById.get(id);
     }
 
+    public Restaurant findRestaurantByOrdinal(int ordinal) {
+        return restaurantByOrdinal.get(ordinal);
+    }
+
+    public int findOrdinalById(String id) {
+        Integer ordinal = ordinalById.get(id);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public int countRestaurants() {
+        return restaurantByOrdinal.size();
+    }
+
+    public RoaringBitmap findOrdinals(RestaurantQuery query) {
+        ordinalsLock.readLock().lock();
+        try {
+            RoaringBitmap ordinals = evaluate(query);
+            // A query that comes down to a single criterion evaluates to the index itself
+            return isSingleCriterion(query) ? ordinals.copy() : ordinals;
+        } finally {
+            ordinalsLock.readLock().unlock();
+        }
+    }
+
+    // Restaurants matching the query in ordinal order, looked up only as the list is read
+    public List<Restaurant> searchRestaurants(RestaurantQuery query) {
+        RoaringBitmap ordinals = findOrdinals(query);
+        int size = ordinals.cardinality();
+        return new AbstractList<Restaurant>() {
+            @Override
+            public Restaurant get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+                }
+                return restaurantByOrdinal.get(ordinals.select(index));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Restaurant> iterator() {
+                PrimitiveIterator.OfInt iterator = ordinals.iterator();
+                return new Iterator<Restaurant>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Restaurant next() {
+                        return restaurantByOrdinal.get(iterator.nextInt());
+                    }
+                };
+            }
+        };
+    }
+
     public List<Restaurant> searchRestaurants(String criteria, Object value) {
         switch (criteria.toLowerCase()) {
             case "city":
-                return restaurantByCity.getOrDefault((String) value, Collections.emptyList());
+                return snapshotOf(restaurantByCity, (String) value);
             case "area":
-                return restaurantByArea.getOrDefault((String) value, Collections.emptyList());
+                return snapshotOf(restaurantByArea, (String) value);
             case "cuisine":
-                return restaurantByCuisine.getOrDefault((String) value, Collections.emptyList());
+                return snapshotOf(restaurantByCuisine, (String) value);
             case "costoftwo":
-                return restaurantByCostOfTwo.getOrDefault((Double) value, Collections.emptyList());
+                return snapshotOf(restaurantByCostOfTwo, (Double) value);
             default:
                 return Collections.emptyList();
         }
     }
+
+    private static <K> List<Restaurant> snapshotOf(Map<K, AppendOnlyList<Restaurant>> index, K value) {
+        AppendOnlyList<Restaurant> restaurants = value == null ? null : index.get(value);
+        return restaurants == null ? Collections.emptyList() : restaurants.snapshot();
+    }
+
+    private RoaringBitmap evaluate(RestaurantQuery query) {
+        switch (query.getOperator()) {
+            case EQUALS: {
+                RoaringBitmap ordinals = query.getValue() == null ? null
+                        : ordinalsOf(query.getCriteria()).get(query.getValue());
+                return ordinals == null ? new RoaringBitmap() : ordinals;
+            }
+            case AT_MOST: {
+                RoaringBitmap result = new RoaringBitmap();
+                for (RoaringBitmap ordinals : ordinalsByCostOfTwo.headMap((Double) query.getValue(), true).values()) {
+                    result = result.or(ordinals);
+                }
+                return result;
+            }
+            case AND: {
+                if (query.getQueries().isEmpty()) {
+                    return RoaringBitmap.range(0, restaurantByOrdinal.size());
+                }
+                // Intersect the smallest sets first, so every step is as cheap as possible
+                List<RoaringBitmap> operands = new ArrayList<>();
+                for (RestaurantQuery operand : query.getQueries()) {
+                    operands.add(evaluate(operand));
+                }
+                operands.sort(Comparator.comparingInt(RoaringBitmap::cardinality));
+                RoaringBitmap result = operands.get(0);
+                for (int i = 1; i < operands.size() && result.cardinality() > 0; i++) {
+                    result = result.and(operands.get(i));
+                }
+                return result;
+            }
+            default: {
+                RoaringBitmap result = new RoaringBitmap();
+                for (RestaurantQuery operand : query.getQueries()) {
+                    result = result.or(evaluate(operand));
+                }
+                return result;
+            }
+        }
+    }
+
+    private static boolean isSingleCriterion(RestaurantQuery query) {
+        return query.getOperator() == RestaurantQuery.Operator.EQUALS ||
+               query.getOperator() == RestaurantQuery.Operator.AND && query.getQueries().size() == 1 &&
+               isSingleCriterion(query.getQueries().get(0));
+    }
+
+    private Map<?, RoaringBitmap> ordinalsOf(String criteria) {
+        switch (criteria) {
+            case "city":
+                return ordinalsByCity;
+            case "area":
+                return ordinalsByArea;
+            case "cuisine":
+                return ordinalsByCuisine;
+            case "costoftwo":
+                return ordinalsByCostOfTwo;
+            default:
+                return Collections.emptyMap();
+        }
+    }
 }
@@ -2,12 +2,12 @@ package repository;
 
 import model.User;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class UserRepo {
 
-    private Map<String, User> userById = new HashMap<>();
+    private Map<String, User> userById = new ConcurrentHashMap<>();
 
     public void saveCustomer(User user) {
         userById.put(user.getId(), user);
@@ -3,32 +3,39 @@ package service;
 import exception.InvalidRequestException;
 import model.Booking;
 import model.Restaurant;
-import model.Schedule;
+import repository.AvailabilityRepo;
 import repository.BookingRepo;
 
-import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class BookingService {
 
+    // Power of two, so a restaurant and date map to a stripe with a mask
+    private static final int LOCK_STRIPES = 1024;
+
     private static BookingService instance;
 
     private BookingRepo bookingRepo;
+    private AvailabilityRepo availabilityRepo;
     private RestaurantService restaurantService;
-    private ConcurrentHashMap<String, Map<LocalDate, Lock>> lockForRestaurantAndDate;
+    // Fixed table of locks shared by all restaurants and dates, so lock memory
+    // stays bounded; a stripe is held only for the O(log slots) check and save
+    private final Lock[] lockStripes;
 
     private BookingService() {
         this.bookingRepo = BookingRepo.getInstance();
+        this.availabilityRepo = AvailabilityRepo.getInstance();
         this.restaurantService = RestaurantService.getInstance();
-        lockForRestaurantAndDate = new ConcurrentHashMap<>();
+        lockStripes = new Lock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            lockStripes[i] = new ReentrantLock();
+        }
     }
 
-    public static BookingService getInstance() {
+    public static synchronized BookingService getInstance() {
         if (instance == null) {
             instance = new BookingService();
         }
@@ -36,23 +43,24 @@ public class BookingService {
     }
 
     public Lock acquireLockForRestaurantAndDate(String restaurantId, LocalDate date) {
-        Map<LocalDate, Lock> dateLocks = lockForRestaurantAndDate.computeIfAbsent(restaurantId, k -> new ConcurrentHashMap<>());
-        Lock lock = dateLocks.computeIfAbsent(date, k -> new ReentrantLock());
+        int hash = Objects.hash(restaurantId, date);
+        Lock lock = lockStripes[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
         lock.lock();
         return lock;
     }
 
     public Booking createBooking(Booking booking) {
         Restaurant restaurant = restaurantService.findRestaurantById(booking.getRestaurant());
+        isValidBookingTime(booking);
         isWithinRestaurantSchedule(booking, restaurant);
         Lock lock = acquireLockForRestaurantAndDate(restaurant.getId(), booking.getStartTime().toLocalDate());
         try {
-            List<Booking> existingBookings = bookingRepo.findBookingsByRestaurantAndDate(booking.getRestaurant(),
-                    booking.getStartTime().toLocalDate());
-            if (countConflictingBookings(booking, existingBookings) >= restaurant.getNumOfTables()) {
+            if (bookingRepo.findPeakOccupancy(restaurant.getId(), booking.getStartTime(), booking.getEndTime()) >=
+                restaurant.getNumOfTables()) {
                 throw new InvalidRequestException("No restaurant table available for requested time");
             }
             bookingRepo.saveBooking(booking);
+            markFullSlots(restaurant, booking);
             return booking;
         } catch (Exception exception) {
             throw exception;
@@ -61,27 +69,29 @@ public class BookingService {
         }
     }
 
+    // Only the minutes of the new booking can have filled up, and availability
+    // search skips the restaurant for any window that touches them
+    private void markFullSlots(Restaurant restaurant, Booking booking) {
+        int ordinal = restaurantService.findRestaurantOrdinal(restaurant.getId());
+        LocalDate date = booking.getStartTime().toLocalDate();
+        bookingRepo.forEachFullSlot(restaurant.getId(), booking.getStartTime(), booking.getEndTime(),
+                restaurant.getNumOfTables(), slot -> availabilityRepo.markFull(date, slot, ordinal));
+    }
+
     private boolean isWithinRestaurantSchedule(Booking booking, Restaurant restaurant) {
-        DayOfWeek bookingDayOfWeek = booking.getStartTime().getDayOfWeek();
-        for (Schedule schedule : restaurant.getSchedule()) {
-            if (schedule.getWeekDay() == bookingDayOfWeek) {
-                if (!booking.getStartTime().toLocalTime().isBefore(schedule.getStartTime()) &&
-                    !booking.getEndTime().toLocalTime().isAfter(schedule.getEndTime())) {
-                    return true;
-                }
-            }
+        if (!restaurantService.isOpen(restaurant, booking.getStartTime(), booking.getEndTime())) {
+            throw new InvalidRequestException("Requested booking time is not within restaurant schedule");
         }
-        throw new InvalidRequestException("Requested booking time is not within restaurant schedule");
+        return true;
     }
 
-    private int countConflictingBookings(Booking newBooking, List<Booking> existingBookings) {
-        int conflicts = 0;
-        for (Booking existingBooking : existingBookings) {
-            if (newBooking.getEndTime().isAfter(existingBooking.getStartTime()) &&
-                newBooking.getStartTime().isBefore(existingBooking.getEndTime())) {
-                conflicts++;
-            }
+    private boolean isValidBookingTime(Booking booking) {
+        if (!booking.getEndTime().isAfter(booking.getStartTime())) {
+            throw new InvalidRequestException("Booking end time must be after its start time");
+        }
+        if (booking.getEndTime().isAfter(booking.getStartTime().toLocalDate().plusDays(1).atStartOfDay())) {
+            throw new InvalidRequestException("Booking must end on the day it starts");
         }
-        return conflicts;
+        return true;
     }
 }
\ No newline at end of file
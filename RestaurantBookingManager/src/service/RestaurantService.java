@@ -1,8 +1,22 @@
 package service;
 
+import exception.InvalidRequestException;
+import helper.OccupancyTree;
+import helper.RoaringBitmap;
+import model.AvailabilityPage;
+import model.AvailabilityQuery;
 import model.Restaurant;
+import model.RestaurantQuery;
+import model.Schedule;
+import repository.AvailabilityRepo;
+import repository.BookingRepo;
 import repository.RestaurantRepo;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 
@@ -12,9 +26,13 @@ public class RestaurantService {
 
     private static RestaurantService instance;
     private RestaurantRepo restaurantRepo;
+    private BookingRepo bookingRepo;
+    private AvailabilityRepo availabilityRepo;
 
     private RestaurantService() {
         this.restaurantRepo = RestaurantRepo.getInstance();
+        this.bookingRepo = BookingRepo.getInstance();
+        this.availabilityRepo = AvailabilityRepo.getInstance();
     }
 
     public static synchronized RestaurantService getInstance() {
@@ -33,8 +51,99 @@ public class RestaurantService {
         return restaurantRepo.findRestaurantById(id);
     }
 
+    public int findRestaurantOrdinal(String id) {
+        return restaurantRepo.findOrdinalById(id);
+    }
+
     public List<Restaurant> searchRestaurants(String criteria, Object value) {
         return restaurantRepo.searchRestaurants(criteria, value);
     }
+
+    public List<Restaurant> searchRestaurants(RestaurantQuery query) {
+        return restaurantRepo.searchRestaurants(query);
+    }
+
+    /**
+     * Returns up to limit restaurants matching the query that are open and have the
+     * requested tables free for the whole window, starting at cursor (0 for the first
+     * page). The attribute filters are resolved as one bitmap query, restaurants full
+     * at any minute of the window are skipped using one bitmap per minute, and the
+     * remaining candidates are checked lazily in ordinal order until the page is filled.
+     */
+    public AvailabilityPage searchAvailableRestaurants(AvailabilityQuery query, int cursor, int limit) {
+        LocalDateTime startTime = query.getStartTime();
+        LocalDateTime endTime = query.getEndTime();
+        if (!endTime.isAfter(startTime) || endTime.isAfter(startTime.toLocalDate().plusDays(1).atStartOfDay())) {
+            throw new InvalidRequestException("Search window must end after it starts and on the same day");
+        }
+        if (query.getTables() < 1 || cursor < 0 || limit < 1) {
+            throw new InvalidRequestException("Tables and page size must be positive and the cursor non-negative");
+        }
+        RoaringBitmap candidates = restaurantRepo.findOrdinals(filtersOf(query));
+        BitSet full = availabilityRepo.findFullRestaurants(startTime.toLocalDate(),
+                OccupancyTree.startSlot(startTime), OccupancyTree.endSlot(startTime, endTime));
+        List<Restaurant> restaurants = new ArrayList<>(Math.min(limit, 64));
+        int ordinal = candidates.nextValue(cursor);
+        for (; ordinal >= 0 && restaurants.size() < limit; ordinal = candidates.nextValue(ordinal + 1)) {
+            if (full.get(ordinal)) {
+                continue;
+            }
+            Restaurant restaurant = restaurantRepo.findRestaurantByOrdinal(ordinal);
+            if (isOpen(restaurant, startTime, endTime) && hasFreeTables(restaurant, query)) {
+                restaurants.add(restaurant);
+            }
+        }
+        return new AvailabilityPage(restaurants, ordinal);
+    }
+
+    private RestaurantQuery filtersOf(AvailabilityQuery query) {
+        List<RestaurantQuery> filters = new ArrayList<>();
+        if (query.getCity() != null) {
+            filters.add(RestaurantQuery.where("city", query.getCity()));
+        }
+        if (query.getArea() != null) {
+            filters.add(RestaurantQuery.where("area", query.getArea()));
+        }
+        if (query.getCuisine() != null) {
+            filters.add(RestaurantQuery.where("cuisine", query.getCuisine()));
+        }
+        if (query.getMaxCostOfTwo() != null) {
+            filters.add(RestaurantQuery.costOfTwoAtMost(query.getMaxCostOfTwo()));
+        }
+        return RestaurantQuery.and(filters.toArray(new RestaurantQuery[0]));
+    }
+
+    /**
+     * Whether the restaurant is open for the whole window, which starts and ends on the
+     * same day or ends at the following midnight. Bookings and availability search both
+     * check opening hours here. The end is compared as a date-time, so a window ending at
+     * midnight is held to closing time, and a schedule closing at 00:00 closes at the end
+     * of the day.
+     */
+    public boolean isOpen(Restaurant restaurant, LocalDateTime startTime, LocalDateTime endTime) {
+        LocalDate date = startTime.toLocalDate();
+        for (Schedule schedule : restaurant.getSchedule()) {
+            if (schedule.getWeekDay() != startTime.getDayOfWeek()) {
+                continue;
+            }
+            LocalDateTime closing = schedule.getEndTime().equals(LocalTime.MIDNIGHT)
+                    ? date.plusDays(1).atStartOfDay() : date.atTime(schedule.getEndTime());
+            if (!startTime.toLocalTime().isBefore(schedule.getStartTime()) && !endTime.isAfter(closing)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The full-minute bitmaps already settle single tables; larger requests need
+    // the peak occupancy to leave that many tables free
+    private boolean hasFreeTables(Restaurant restaurant, AvailabilityQuery query) {
+        int tables = query.getTables();
+        if (tables > restaurant.getNumOfTables()) {
+            return false;
+        }
+        return tables == 1 || bookingRepo.findPeakOccupancy(restaurant.getId(), query.getStartTime(),
+                query.getEndTime()) <= restaurant.getNumOfTables() - tables;
+    }
 }
 
@@ -1,98 +1,2972 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.SoftReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static java.util.Objects.nonNull;
 
+// Thrown when an edit would make a cell depend on itself; the sheet is left
+// as it was before the edit
+class CircularReferenceException extends RuntimeException {
+    public CircularReferenceException(String message) {
+        super(message);
+    }
+}
+
+// Values live in chunked primitive arrays, one chunk directory per column,
+// addressed by (row, column). A chunk is only allocated once a non-zero
+// value is written into it, so empty regions cost nothing. Cells that hold
+// a formula, or that a formula references, also get an entry in a side
+// table carrying the compiled formula and the dependency edges; a numeric
+// literal nobody references is just its long in the column chunk.
+// A value is a LONG, a DOUBLE, a DECIMAL (BigDecimal) or an ERROR, the
+// result of an overflow or a non-finite double, which spreads to every
+// formula reading it.
 public class Spreadsheet {
 
+    // Excel's limits, which keep a column's chunk directory small
+    public static final int MAX_ROWS = 1 << 20;
+    public static final int MAX_COLUMNS = 1 << 14;
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+    // A chunk holds CHUNK_ROWS values followed by one occupancy bit per row
+    // and two type bit-planes, so a block of BLOCK_ROWS rows shares one word
+    // of each. A DOUBLE is stored as its bits; a DECIMAL lives in the
+    // decimals of its chunk and an ERROR has no value.
+    private static final int BLOCK_BITS = 6;
+    private static final int BLOCK_ROWS = 1 << BLOCK_BITS;
+    private static final int CHUNK_WORDS = CHUNK_ROWS / BLOCK_ROWS;
+    private static final int OCCUPANCY = CHUNK_ROWS;
+    private static final int TYPE_LOW = OCCUPANCY + CHUNK_WORDS;
+    private static final int TYPE_HIGH = TYPE_LOW + CHUNK_WORDS;
+    private static final int CHUNK_LONGS = TYPE_HIGH + CHUNK_WORDS;
+    // Types by width: an expression takes the widest of its operands
+    static final int LONG = 0;
+    static final int DECIMAL = 1;
+    static final int DOUBLE = 2;
+    static final int ERROR = 3;
+    // Cells of one block may be evaluated on different threads, so their
+    // shared type words change atomically
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Side-table entry of a cell with a formula or with dependents
     class Cell {
-        private String content;
-        private Integer value;
-        private final Spreadsheet spreadsheet;
+        private final int row;
+        private final int column;
+        // Null when the cell holds a literal
+        private Expression formula;
+        // The formula as written, less whitespace, for export and save; the
+        // compiled tree folds constants and reorders operands
+        private String source;
+        // Distinct cells the formula reads; slots[i] is this cell's index in
+        // references[i].dependents, so an edge is removed without a search
+        private Cell[] references = NO_CELLS;
+        private int[] slots = NO_SLOTS;
+        // Ranges the formula aggregates over; their cells are not linked one
+        // by one but found through the column indexes
+        private Range[] ranges = NO_RANGES;
+        // Cells of other sheets the formula reads, registered by sheet in
+        // externalReaders
+        private ExternalReference[] externals = NO_EXTERNALS;
+        private Cell[] dependents = NO_CELLS;
+        private int dependentCount;
+        // Scratch state of the latest dependency walk
+        private int visitedEpoch;
+        private int finishedEpoch;
+        private Cell reachedFrom;
+        private int level;
 
-        public Cell(String content, Spreadsheet spreadsheet) {
-            this.spreadsheet = spreadsheet;
-            this.content = content;
-            this.value = null;
+        Cell(int row, int column) {
+            this.row = row;
+            this.column = column;
         }
 
-        public void setValue(String content) {
-          this.content = content;
-          value = null;
+        public Number getValue() {
+            return valueAt(row, column);
         }
 
-        public Integer getValue() {
-            if(nonNull(value)) {
-                return value;
+        private void evaluate() {
+            if(nonNull(formula)) {
+                assign(row, column, formula);
             }
-            value = evaluate();
-            return value;
         }
 
-        private Integer evaluate() {
-            List<String> tokens = extractTokens();
-            Integer result = 0;
-            String lastOperator = "+";
-            Integer tokenValue = 0;
-            for(int i = 0; i < tokens.size(); i++) {
-                if(tokens.get(i).equals("+") || tokens.get(i).equals("-")) {
-                    lastOperator = tokens.get(i);
-                    continue;
-                } else if(tokens.get(i).matches("\\d+")) {
-                    tokenValue = Integer.parseInt(tokens.get(i));
-                } else if(tokens.get(i).matches("^[A-Z]+\\d+$")){
-                    tokenValue = spreadsheet.getCellContent(tokens.get(i));
-                }
-                if(lastOperator.equals("+")) {
-                    result += tokenValue;
-                } else {
-                    result -= tokenValue;
+        private int addDependent(Cell dependent) {
+            if(dependentCount == dependents.length) {
+                dependents = Arrays.copyOf(dependents, Math.max(2, dependentCount * 2));
+            }
+            dependents[dependentCount] = dependent;
+            return dependentCount++;
+        }
+
+        // Moves the last dependent into the freed slot and fixes its back index
+        private void removeDependent(int slot) {
+            int last = --dependentCount;
+            Cell moved = dependents[last];
+            dependents[slot] = moved;
+            dependents[last] = null;
+            if(slot != last) {
+                for(int i = 0; i < moved.references.length; i++) {
+                    if(moved.references[i] == this) {
+                        moved.slots[i] = slot;
+                        break;
+                    }
                 }
             }
+        }
+
+        private boolean isNeeded() {
+            return nonNull(formula) || dependentCount > 0;
+        }
+
+        // Explicit dependents first, then the range formulas of this column
+        private int dependentSlots() {
+            ColumnIndex index = indexAt(column);
+            return index == null ? dependentCount : dependentCount + index.ranges.size();
+        }
+
+        // The dependent in a slot, or null for a range not covering this cell
+        private Cell dependentAt(int slot) {
+            if(slot < dependentCount) {
+                return dependents[slot];
+            }
+            Range range = indexes[column].ranges.get(slot - dependentCount);
+            return range.covers(row, column) ? range.owner : null;
+        }
+
+        private String key() {
+            return keyOf(row, column);
+        }
+    }
+
+    // Compiled form of a formula. type() gives the widest type among the
+    // operands as they stand, and the cell then calls the evaluate method
+    // for that type, right after and on the same thread, so an expression
+    // may keep what type() gathered for it. The LONG path reads primitives
+    // straight out of the column chunks and allocates nothing; it throws
+    // ArithmeticException on overflow.
+    interface Expression {
+        int type();
+
+        long evaluateLong();
+
+        double evaluateDouble();
+
+        BigDecimal evaluateDecimal();
+    }
+
+    private static final class Constant implements Expression {
+        private final int type;
+        private final long longValue;
+        private final double doubleValue;
+        private final BigDecimal decimalValue;
+
+        private Constant(int type, long longValue, double doubleValue, BigDecimal decimalValue) {
+            this.type = type;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+            this.decimalValue = decimalValue;
+        }
+
+        static Constant ofLong(long value) {
+            return new Constant(LONG, value, value, null);
+        }
+
+        static Constant ofDouble(double value) {
+            return new Constant(DOUBLE, 0, value, null);
+        }
+
+        static Constant ofDecimal(BigDecimal value) {
+            return new Constant(DECIMAL, 0, value.doubleValue(), value);
+        }
+
+        static Constant ofError() {
+            return new Constant(ERROR, 0, Double.NaN, null);
+        }
+
+        @Override
+        public int type() {
+            return type;
+        }
+
+        @Override
+        public long evaluateLong() {
+            return longValue;
+        }
+
+        @Override
+        public double evaluateDouble() {
+            return doubleValue;
+        }
+
+        @Override
+        public BigDecimal evaluateDecimal() {
+            return type == DECIMAL ? decimalValue : type == DOUBLE ? new BigDecimal(doubleValue)
+                                                                    : BigDecimal.valueOf(longValue);
+        }
+    }
+
+    private final class Reference implements Expression {
+        private final int row;
+        private final int column;
+
+        Reference(int row, int column) {
+            this.row = row;
+            this.column = column;
+        }
+
+        @Override
+        public int type() {
+            return wideCells.get() == 0 ? LONG : typeAt(row, column);
+        }
+
+        @Override
+        public long evaluateLong() {
+            return longAt(row, column);
+        }
+
+        @Override
+        public double evaluateDouble() {
+            return doubleAt(row, column);
+        }
+
+        @Override
+        public BigDecimal evaluateDecimal() {
+            return decimalAt(row, column);
+        }
+    }
+
+    // Sheet2!B7: a cell of another sheet of the workbook. The sheet is looked
+    // up on every read, so it may be paged out and back in between.
+    private final class ExternalReference implements Expression {
+        private final String sheet;
+        private final int row;
+        private final int column;
+
+        ExternalReference(String sheet, int row, int column) {
+            this.sheet = sheet;
+            this.row = row;
+            this.column = column;
+        }
+
+        @Override
+        public int type() {
+            return workbook.sheet(sheet).typeAt(row, column);
+        }
+
+        @Override
+        public long evaluateLong() {
+            return workbook.sheet(sheet).longAt(row, column);
+        }
+
+        @Override
+        public double evaluateDouble() {
+            return workbook.sheet(sheet).doubleAt(row, column);
+        }
+
+        @Override
+        public BigDecimal evaluateDecimal() {
+            return workbook.sheet(sheet).decimalAt(row, column);
+        }
+    }
+
+    // constant + or - each referenced value, then + or - each other operand:
+    // aggregates, cells of other sheets, and constants that are not LONG or
+    // did not fold
+    private final class Sum implements Expression {
+        private final long constant;
+        private final int[] rows;
+        private final int[] columns;
+        private final int[] signs;
+        private final Expression[] others;
+        private final int[] otherSigns;
+
+        Sum(long constant, int[] rows, int[] columns, int[] signs, Expression[] others, int[] otherSigns) {
+            this.constant = constant;
+            this.rows = rows;
+            this.columns = columns;
+            this.signs = signs;
+            this.others = others;
+            this.otherSigns = otherSigns;
+        }
+
+        @Override
+        public int type() {
+            int type = LONG;
+            for(int i = 0; wideCells.get() > 0 && i < rows.length; i++) {
+                type = Math.max(type, typeAt(rows[i], columns[i]));
+            }
+            for(Expression other : others) {
+                type = Math.max(type, other.type());
+            }
+            return type;
+        }
+
+        @Override
+        public long evaluateLong() {
+            long result = constant;
+            for(int i = 0; i < rows.length; i++) {
+                long value = longAt(rows[i], columns[i]);
+                result = signs[i] > 0 ? Math.addExact(result, value) : Math.subtractExact(result, value);
+            }
+            for(int i = 0; i < others.length; i++) {
+                long value = others[i].evaluateLong();
+                result = otherSigns[i] > 0 ? Math.addExact(result, value) : Math.subtractExact(result, value);
+            }
             return result;
         }
 
-        private List<String> extractTokens() {
-            String trimmedExpression = content.replaceAll("\\s","");
-            List<String> tokens = new ArrayList<>();
-            tokens.add("0");
-            for(int i = 0 ; i < trimmedExpression.length(); i++) {
-                StringBuilder currentToken = new StringBuilder();
-                while(i < trimmedExpression.length() && !(trimmedExpression.charAt(i) == '+' || trimmedExpression.charAt(i) == '-')) {
-                    currentToken.append(trimmedExpression.charAt(i));
-                    i++;
+        @Override
+        public double evaluateDouble() {
+            double result = constant;
+            for(int i = 0; i < rows.length; i++) {
+                result += signs[i] * doubleAt(rows[i], columns[i]);
+            }
+            for(int i = 0; i < others.length; i++) {
+                result += otherSigns[i] * others[i].evaluateDouble();
+            }
+            return result;
+        }
+
+        @Override
+        public BigDecimal evaluateDecimal() {
+            BigDecimal result = BigDecimal.valueOf(constant);
+            for(int i = 0; i < rows.length; i++) {
+                BigDecimal value = decimalAt(rows[i], columns[i]);
+                result = signs[i] > 0 ? result.add(value) : result.subtract(value);
+            }
+            for(int i = 0; i < others.length; i++) {
+                BigDecimal value = others[i].evaluateDecimal();
+                result = otherSigns[i] > 0 ? result.add(value) : result.subtract(value);
+            }
+            return result;
+        }
+    }
+
+    enum Function {
+        SUM, MIN, MAX, AVG, COUNT
+    }
+
+    // Rectangle of cells, bounds inclusive, read by the formula of owner
+    private static final class Range {
+        private final int fromRow;
+        private final int toRow;
+        private final int fromColumn;
+        private final int toColumn;
+        private Cell owner;
+
+        Range(long from, long to) {
+            fromRow = Math.min(rowOf(from), rowOf(to));
+            toRow = Math.max(rowOf(from), rowOf(to));
+            fromColumn = Math.min(columnOf(from), columnOf(to));
+            toColumn = Math.max(columnOf(from), columnOf(to));
+        }
+
+        boolean covers(int row, int column) {
+            return row >= fromRow && row <= toRow && column >= fromColumn && column <= toColumn;
+        }
+    }
+
+    // What a range holds: a 128-bit sum (high word and unsigned low word),
+    // MIN and MAX over its LONG cells, and how many cells it has of each
+    // type
+    private static final class Fold {
+        private long sumHigh;
+        private long sumLow;
+        private long min;
+        private long max;
+        private long count;
+        private long decimals;
+        private long doubles;
+        private long errors;
+
+        void reset() {
+            sumHigh = 0;
+            sumLow = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            count = 0;
+            decimals = 0;
+            doubles = 0;
+            errors = 0;
+        }
+
+        long longs() {
+            return count - decimals - doubles - errors;
+        }
+
+        // The sum if it fits in a long
+        long sum() {
+            if(sumHigh != sumLow >> 63) {
+                throw new ArithmeticException("long overflow");
+            }
+            return sumLow;
+        }
+
+        double sumAsDouble() {
+            return sumHigh == sumLow >> 63 ? sumLow : sumAsDecimal().doubleValue();
+        }
+
+        BigDecimal sumAsDecimal() {
+            BigInteger low = BigInteger.valueOf(sumLow >>> 1).shiftLeft(1).add(BigInteger.valueOf(sumLow & 1));
+            return new BigDecimal(BigInteger.valueOf(sumHigh).shiftLeft(64).add(low));
+        }
+    }
+
+    // SUM(A1:B10) and friends. Only cells that were given content take
+    // part, so COUNT, MIN, MAX and AVG skip empty ones; over no cells each
+    // gives 0. Over LONG cells the column indexes answer in O(log n) per
+    // column. DECIMAL and DOUBLE cells, found through the same indexes, are
+    // folded in one by one. AVG is a DOUBLE, or a DECIMAL over LONG and
+    // DECIMAL cells.
+    private final class Aggregate implements Expression {
+        private final Function function;
+        private final Range range;
+        // Filled by type(); a cell is never evaluated on two threads at once
+        private final Fold fold = new Fold();
+
+        Aggregate(Function function, Range range) {
+            this.function = function;
+            this.range = range;
+        }
+
+        @Override
+        public int type() {
+            fold.reset();
+            for(int column = range.fromColumn; column <= range.toColumn; column++) {
+                indexes[column].fold(range.fromRow, range.toRow, fold);
+            }
+            if(function == Function.COUNT) {
+                return LONG;
+            }
+            if(fold.errors > 0) {
+                return ERROR;
+            }
+            if(function == Function.AVG) {
+                return fold.count == 0 ? LONG : fold.doubles == 0 && fold.decimals > 0 ? DECIMAL : DOUBLE;
+            }
+            return fold.doubles > 0 ? DOUBLE : fold.decimals > 0 ? DECIMAL : LONG;
+        }
+
+        @Override
+        public long evaluateLong() {
+            switch(function) {
+                case COUNT:
+                    return fold.count;
+                case SUM:
+                    return fold.sum();
+                case MIN:
+                    return fold.count == 0 ? 0 : fold.min;
+                case MAX:
+                    return fold.count == 0 ? 0 : fold.max;
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public double evaluateDouble() {
+            if(function == Function.COUNT || fold.count == 0) {
+                return fold.count;
+            }
+            double[] result = {fold.sumAsDouble(), fold.min, fold.max};
+            if(fold.longs() == 0) {
+                result[1] = Double.POSITIVE_INFINITY;
+                result[2] = Double.NEGATIVE_INFINITY;
+            }
+            forEachWideCell((row, column) -> {
+                double value = doubleAt(row, column);
+                result[0] += value;
+                result[1] = Math.min(result[1], value);
+                result[2] = Math.max(result[2], value);
+            });
+            switch(function) {
+                case MIN:
+                    return result[1];
+                case MAX:
+                    return result[2];
+                case AVG:
+                    return result[0] / fold.count;
+                default:
+                    return result[0];
+            }
+        }
+
+        @Override
+        public BigDecimal evaluateDecimal() {
+            if(function == Function.COUNT || fold.count == 0) {
+                return BigDecimal.valueOf(fold.count);
+            }
+            BigDecimal[] result = {fold.sumAsDecimal(), null, null};
+            if(fold.longs() > 0) {
+                result[1] = BigDecimal.valueOf(fold.min);
+                result[2] = BigDecimal.valueOf(fold.max);
+            }
+            forEachWideCell((row, column) -> {
+                BigDecimal value = decimalAt(row, column);
+                result[0] = result[0].add(value);
+                result[1] = result[1] == null || value.compareTo(result[1]) < 0 ? value : result[1];
+                result[2] = result[2] == null || value.compareTo(result[2]) > 0 ? value : result[2];
+            });
+            switch(function) {
+                case MIN:
+                    return result[1];
+                case MAX:
+                    return result[2];
+                case AVG:
+                    return result[0].divide(BigDecimal.valueOf(fold.count), MathContext.DECIMAL128);
+                default:
+                    return result[0];
+            }
+        }
+
+        private void forEachWideCell(CellVisitor visitor) {
+            for(int column = range.fromColumn; column <= range.toColumn; column++) {
+                int visited = column;
+                indexes[column].forEachWide(range.fromRow, range.toRow, row -> visitor.visit(row, visited));
+            }
+        }
+    }
+
+    private interface CellVisitor {
+        void visit(int row, int column);
+    }
+
+    // Folds over the rows of one block that are set in mask. The Vector API
+    // version lives in SpreadsheetVectorKernel, which only compiles with
+    // --add-modules jdk.incubator.vector; without it the scalar one is used.
+    interface BlockKernel {
+        // Sum of the high 32-bit halves, signed, and of the low halves,
+        // unsigned; neither can overflow over one block
+        long sumHighHalves(long[] values, int offset, long mask);
+
+        long sumLowHalves(long[] values, int offset, long mask);
+
+        long min(long[] values, int offset, long mask);
+
+        long max(long[] values, int offset, long mask);
+    }
+
+    // Branch-free selects, so that C2 can still vectorize the loops
+    static final class ScalarKernel implements BlockKernel {
+        @Override
+        public long sumHighHalves(long[] values, int offset, long mask) {
+            long sum = 0;
+            for(int i = 0; i < BLOCK_ROWS; i++) {
+                sum += (values[offset + i] >> 32) & -(mask >>> i & 1);
+            }
+            return sum;
+        }
+
+        @Override
+        public long sumLowHalves(long[] values, int offset, long mask) {
+            long sum = 0;
+            for(int i = 0; i < BLOCK_ROWS; i++) {
+                sum += values[offset + i] & 0xFFFFFFFFL & -(mask >>> i & 1);
+            }
+            return sum;
+        }
+
+        @Override
+        public long min(long[] values, int offset, long mask) {
+            long min = Long.MAX_VALUE;
+            for(int i = 0; i < BLOCK_ROWS; i++) {
+                long selected = -(mask >>> i & 1);
+                min = Math.min(min, values[offset + i] & selected | Long.MAX_VALUE & ~selected);
+            }
+            return min;
+        }
+
+        @Override
+        public long max(long[] values, int offset, long mask) {
+            long max = Long.MIN_VALUE;
+            for(int i = 0; i < BLOCK_ROWS; i++) {
+                long selected = -(mask >>> i & 1);
+                max = Math.max(max, values[offset + i] & selected | Long.MIN_VALUE & ~selected);
+            }
+            return max;
+        }
+    }
+
+    private static final BlockKernel KERNEL = loadKernel();
+
+    // -Dspreadsheet.kernel=scalar forces the fallback
+    private static BlockKernel loadKernel() {
+        if(!"scalar".equals(System.getProperty("spreadsheet.kernel"))) {
+            try {
+                return (BlockKernel) Class.forName("SpreadsheetVectorKernel").getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException | LinkageError e) {
+                // Not compiled, or the incubator module is not resolved
+            }
+        }
+        return new ScalarKernel();
+    }
+
+    static String kernelName() {
+        return KERNEL.getClass().getSimpleName();
+    }
+
+    // Per-column segment tree over blocks of BLOCK_ROWS rows, kept for
+    // columns some range reads; each node holds a Fold of its blocks. A
+    // point edit refolds its block and walks up the tree. A query folds
+    // whole blocks from the tree and the partial blocks at its ends from
+    // the chunk, which keeps the tree BLOCK_ROWS times smaller than one
+    // leaf per row.
+    private final class ColumnIndex {
+        // A node is NODE_LONGS consecutive longs, one cache line
+        private static final int SUM_HIGH = 0;
+        private static final int SUM_LOW = 1;
+        private static final int MIN = 2;
+        private static final int MAX = 3;
+        private static final int COUNT = 4;
+        private static final int DECIMALS = 5;
+        private static final int DOUBLES = 6;
+        private static final int ERRORS = 7;
+        private static final int NODE_LONGS = 8;
+
+        private final int column;
+        private final List<Range> ranges = new ArrayList<>();
+        // Nodes 1..2*leaves-1, the leaf of block b at leaves + b
+        private int leaves;
+        private long[] nodes;
+        // Only the writer updates the index
+        private final Fold leaf = new Fold();
+
+        ColumnIndex(int column, int rows) {
+            this.column = column;
+            build(rows);
+        }
+
+        private void build(int rows) {
+            int blocks = Math.max(1, (rows + BLOCK_ROWS - 1) >>> BLOCK_BITS);
+            leaves = Integer.highestOneBit(blocks) == blocks ? blocks : Integer.highestOneBit(blocks) << 1;
+            nodes = new long[2 * leaves * NODE_LONGS];
+            for(int block = 0; block < leaves; block++) {
+                computeLeaf(block);
+            }
+            for(int node = leaves - 1; node > 0; node--) {
+                pull(node);
+            }
+        }
+
+        void update(int row) {
+            int block = row >>> BLOCK_BITS;
+            if(block >= leaves) {
+                build(row + 1);
+                return;
+            }
+            computeLeaf(block);
+            for(int node = (leaves + block) >>> 1; node > 0; node >>>= 1) {
+                pull(node);
+            }
+        }
+
+        // Adds rows from..to of this column to fold
+        void fold(int from, int to, Fold fold) {
+            to = Math.min(to, (leaves << BLOCK_BITS) - 1);
+            if(from > to) {
+                return;
+            }
+            int firstBlock = from >>> BLOCK_BITS;
+            int lastBlock = to >>> BLOCK_BITS;
+            if(firstBlock == lastBlock) {
+                foldRows(from, to, fold);
+                return;
+            }
+            int low = leaves + firstBlock;
+            int high = leaves + lastBlock + 1;
+            if((from & (BLOCK_ROWS - 1)) != 0) {
+                foldRows(from, (firstBlock << BLOCK_BITS) + BLOCK_ROWS - 1, fold);
+                low++;
+            }
+            if((to & (BLOCK_ROWS - 1)) != BLOCK_ROWS - 1) {
+                foldRows(lastBlock << BLOCK_BITS, to, fold);
+                high--;
+            }
+            for(; low < high; low >>>= 1, high >>>= 1) {
+                if((low & 1) == 1) {
+                    foldNode(low++, fold);
+                }
+                if((high & 1) == 1) {
+                    foldNode(--high, fold);
                 }
-                tokens.add(currentToken.toString());
-                if(i < trimmedExpression.length()) {
-                    tokens.add(String.valueOf(trimmedExpression.charAt(i)));
+            }
+        }
+
+        // Visits the DECIMAL and DOUBLE cells among rows from..to, descending
+        // only into subtrees that hold some
+        void forEachWide(int from, int to, IntConsumer visitor) {
+            forEachWide(1, 0, leaves - 1, from, Math.min(to, (leaves << BLOCK_BITS) - 1), visitor);
+        }
+
+        private void forEachWide(int node, int firstBlock, int lastBlock, int from, int to, IntConsumer visitor) {
+            int base = node * NODE_LONGS;
+            if(lastBlock < from >>> BLOCK_BITS || firstBlock > to >>> BLOCK_BITS
+               || nodes[base + DECIMALS] + nodes[base + DOUBLES] == 0) {
+                return;
+            }
+            if(firstBlock == lastBlock) {
+                long[] chunk = chunkAt(firstBlock << BLOCK_BITS, column);
+                int word = ((firstBlock << BLOCK_BITS) & CHUNK_MASK) >>> BLOCK_BITS;
+                long wide = chunk[OCCUPANCY + word] & (chunk[TYPE_LOW + word] ^ chunk[TYPE_HIGH + word]);
+                for(long bits = wide & rowMask(firstBlock, from, to); bits != 0; bits &= bits - 1) {
+                    visitor.accept((firstBlock << BLOCK_BITS) + Long.numberOfTrailingZeros(bits));
                 }
+                return;
+            }
+            int middle = (firstBlock + lastBlock) >>> 1;
+            forEachWide(2 * node, firstBlock, middle, from, to, visitor);
+            forEachWide(2 * node + 1, middle + 1, lastBlock, from, to, visitor);
+        }
+
+        // Rows from..to, which lie in one block
+        private void foldRows(int from, int to, Fold fold) {
+            long[] chunk = chunkAt(from, column);
+            if(chunk == null) {
+                return;
+            }
+            int block = from >>> BLOCK_BITS;
+            int word = (from & CHUNK_MASK) >>> BLOCK_BITS;
+            long occupied = chunk[OCCUPANCY + word] & rowMask(block, from, to);
+            if(occupied == 0) {
+                return;
             }
-            return tokens;
+            long typeLow = chunk[TYPE_LOW + word];
+            long typeHigh = chunk[TYPE_HIGH + word];
+            long longs = occupied & ~typeLow & ~typeHigh;
+            int offset = (block << BLOCK_BITS) & CHUNK_MASK;
+            addToSum(fold, KERNEL.sumHighHalves(chunk, offset, longs), KERNEL.sumLowHalves(chunk, offset, longs));
+            fold.min = Math.min(fold.min, KERNEL.min(chunk, offset, longs));
+            fold.max = Math.max(fold.max, KERNEL.max(chunk, offset, longs));
+            fold.count += Long.bitCount(occupied);
+            if(longs != occupied) {
+                fold.decimals += Long.bitCount(occupied & typeLow & ~typeHigh);
+                fold.doubles += Long.bitCount(occupied & ~typeLow & typeHigh);
+                fold.errors += Long.bitCount(occupied & typeLow & typeHigh);
+            }
+        }
+
+        private void foldNode(int node, Fold fold) {
+            int base = node * NODE_LONGS;
+            long low = fold.sumLow + nodes[base + SUM_LOW];
+            fold.sumHigh += nodes[base + SUM_HIGH] + (Long.compareUnsigned(low, fold.sumLow) < 0 ? 1 : 0);
+            fold.sumLow = low;
+            fold.min = Math.min(fold.min, nodes[base + MIN]);
+            fold.max = Math.max(fold.max, nodes[base + MAX]);
+            fold.count += nodes[base + COUNT];
+            fold.decimals += nodes[base + DECIMALS];
+            fold.doubles += nodes[base + DOUBLES];
+            fold.errors += nodes[base + ERRORS];
+        }
+
+        private void computeLeaf(int block) {
+            leaf.reset();
+            int row = block << BLOCK_BITS;
+            foldRows(row, row + BLOCK_ROWS - 1, leaf);
+            int base = (leaves + block) * NODE_LONGS;
+            nodes[base + SUM_HIGH] = leaf.sumHigh;
+            nodes[base + SUM_LOW] = leaf.sumLow;
+            nodes[base + MIN] = leaf.min;
+            nodes[base + MAX] = leaf.max;
+            nodes[base + COUNT] = leaf.count;
+            nodes[base + DECIMALS] = leaf.decimals;
+            nodes[base + DOUBLES] = leaf.doubles;
+            nodes[base + ERRORS] = leaf.errors;
+        }
+
+        private void pull(int node) {
+            int base = node * NODE_LONGS;
+            int left = 2 * base;
+            int right = left + NODE_LONGS;
+            long low = nodes[left + SUM_LOW] + nodes[right + SUM_LOW];
+            nodes[base + SUM_HIGH] = nodes[left + SUM_HIGH] + nodes[right + SUM_HIGH]
+                                     + (Long.compareUnsigned(low, nodes[left + SUM_LOW]) < 0 ? 1 : 0);
+            nodes[base + SUM_LOW] = low;
+            nodes[base + MIN] = Math.min(nodes[left + MIN], nodes[right + MIN]);
+            nodes[base + MAX] = Math.max(nodes[left + MAX], nodes[right + MAX]);
+            nodes[base + COUNT] = nodes[left + COUNT] + nodes[right + COUNT];
+            nodes[base + DECIMALS] = nodes[left + DECIMALS] + nodes[right + DECIMALS];
+            nodes[base + DOUBLES] = nodes[left + DOUBLES] + nodes[right + DOUBLES];
+            nodes[base + ERRORS] = nodes[left + ERRORS] + nodes[right + ERRORS];
         }
     }
 
-    private Map<String, Cell> cells;
+    // Bits of rows from..to within block, clipped to the block
+    private static long rowMask(int block, int from, int to) {
+        int first = Math.max(from - (block << BLOCK_BITS), 0);
+        int last = Math.min(to - (block << BLOCK_BITS), BLOCK_ROWS - 1);
+        if(first > last) {
+            return 0;
+        }
+        return (-1L >>> (BLOCK_ROWS - 1 - last)) & (-1L << first);
+    }
 
-    public Spreadsheet() {
-        cells = new HashMap<>();
+    // Adds the two half sums of a block, high * 2^32 + low, to the 128-bit sum
+    private static void addToSum(Fold fold, long highHalves, long lowHalves) {
+        long high = highHalves >> 32;
+        long low = highHalves << 32;
+        long sum = low + lowHalves;
+        high += Long.compareUnsigned(sum, low) < 0 ? 1 : 0;
+        long total = fold.sumLow + sum;
+        fold.sumHigh += high + (Long.compareUnsigned(total, fold.sumLow) < 0 ? 1 : 0);
+        fold.sumLow = total;
     }
 
-    public void setCellContent(String key, String content) {
-        if(cells.containsKey(key)) {
-            cells.get(key).setValue(content);
-        } else {
-            Cell cell = new Cell(content, this);
-            cells.put(key, cell);
+    // Open-addressing map from a packed (row, column) to its side-table
+    // entry; lookups neither box keys nor allocate entries
+    private static final class CellTable {
+        private long[] keys = new long[16];
+        private Cell[] cells = new Cell[16];
+        private int size;
+
+        Cell get(long key) {
+            int mask = keys.length - 1;
+            for(int i = home(key, mask); nonNull(cells[i]); i = (i + 1) & mask) {
+                if(keys[i] == key) {
+                    return cells[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, Cell cell) {
+            if((size + 1) * 4 > keys.length * 3) {
+                long[] oldKeys = keys;
+                Cell[] oldCells = cells;
+                keys = new long[oldKeys.length * 2];
+                cells = new Cell[oldKeys.length * 2];
+                size = 0;
+                for(int i = 0; i < oldKeys.length; i++) {
+                    if(nonNull(oldCells[i])) {
+                        put(oldKeys[i], oldCells[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int i = home(key, mask);
+            while(nonNull(cells[i]) && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if(cells[i] == null) {
+                size++;
+            }
+            keys[i] = key;
+            cells[i] = cell;
+        }
+
+        // Backward-shift deletion keeps every probe chain unbroken without
+        // leaving tombstones
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = home(key, mask);
+            while(nonNull(cells[i]) && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if(cells[i] == null) {
+                return;
+            }
+            cells[i] = null;
+            size--;
+            for(int j = (i + 1) & mask; nonNull(cells[j]); j = (j + 1) & mask) {
+                int home = home(keys[j], mask);
+                boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if(!between) {
+                    keys[i] = keys[j];
+                    cells[i] = cells[j];
+                    cells[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        void forEach(Consumer<Cell> action) {
+            for(Cell cell : cells) {
+                if(nonNull(cell)) {
+                    action.accept(cell);
+                }
+            }
+        }
+
+        private static int home(long key, int mask) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
         }
     }
 
-    public Integer getCellContent(String key) {
-        if(!cells.containsKey(key)) {
-            return 0;
-        } else {
-            return cells.get(key).getValue();
+    // Writes to a channel through one direct buffer, little-endian so that
+    // chunks copy out without byte swapping on common hardware
+    private static final class Output {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer reserve(int bytes) {
+            if(buffer.remaining() < bytes) {
+                drain();
+                if(buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            return buffer;
+        }
+
+        void putLongs(long[] values) {
+            reserve(values.length * 8).asLongBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 8);
+        }
+
+        void drain() {
+            buffer.flip();
+            try {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class Input {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        Input(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        // Refills until at least bytes are buffered
+        ByteBuffer require(int bytes) {
+            if(buffer.remaining() < bytes) {
+                if(buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN).put(buffer);
+                } else {
+                    buffer.compact();
+                }
+                try {
+                    while(buffer.position() < bytes) {
+                        if(channel.read(buffer) < 0) {
+                            throw new EOFException("Truncated spreadsheet file");
+                        }
+                    }
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                buffer.flip();
+            }
+            return buffer;
+        }
+
+        void getLongs(long[] values) {
+            require(values.length * 8).asLongBuffer().get(values);
+            buffer.position(buffer.position() + values.length * 8);
+        }
+
+        // Bytes not yet consumed, whether buffered or still in the file
+        long remaining() {
+            try {
+                return buffer.remaining() + channel.size() - channel.position();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
+
+    // Evaluates one slice of a level, splitting while the slice is large
+    private static final class LevelTask extends RecursiveAction {
+        private final Cell[] cells;
+        private final int from;
+        private final int to;
+
+        LevelTask(Cell[] cells, int from, int to) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= TASK_CELLS) {
+                for(int i = from; i < to; i++) {
+                    cells[i].evaluate();
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(cells, from, middle), new LevelTask(cells, middle, to));
+        }
+    }
+
+    // Values of the sheet as of one commit. Nothing it holds is written
+    // again: after a commit the sheet copies a chunk before its first write
+    // to it, so a snapshot shares every chunk that has not changed since and
+    // costs one copy of the chunk directories, plus one of the decimals of
+    // each chunk whose decimals changed. Any number of threads may read one
+    // without locking.
+    public static final class Snapshot {
+        private final long version;
+        private final long[][][] columns;
+        private final Map<Long, Map<Integer, BigDecimal>> decimals;
+
+        private Snapshot(long version, long[][][] columns, Map<Long, Map<Integer, BigDecimal>> decimals) {
+            this.version = version;
+            this.columns = columns;
+            this.decimals = decimals;
+        }
+
+        // Counts commits, starting from 0 for the empty snapshot
+        public long version() {
+            return version;
+        }
+
+        public Number getCellContent(String key) {
+            long coordinate = parseCoordinate(key);
+            if(coordinate < 0) {
+                return 0L;
+            }
+            return valueOf(chunkAt(rowOf(coordinate), columnOf(coordinate)), rowOf(coordinate),
+                    columnOf(coordinate), decimals);
+        }
+
+        public long getLong(String key) {
+            long coordinate = parseCoordinate(key);
+            if(coordinate < 0) {
+                return 0;
+            }
+            return longOf(chunkAt(rowOf(coordinate), columnOf(coordinate)), rowOf(coordinate), columnOf(coordinate));
+        }
+
+        public double getDouble(String key) {
+            long coordinate = parseCoordinate(key);
+            if(coordinate < 0) {
+                return 0;
+            }
+            return checkedDoubleOf(chunkAt(rowOf(coordinate), columnOf(coordinate)), rowOf(coordinate),
+                    columnOf(coordinate), decimals);
+        }
+
+        private long[] chunkAt(int row, int column) {
+            if(column >= columns.length) {
+                return null;
+            }
+            long[][] chunks = columns[column];
+            int chunk = row >>> CHUNK_BITS;
+            if(chunks == null || chunk >= chunks.length) {
+                return null;
+            }
+            return chunks[chunk];
+        }
+    }
+
+    private static final Cell[] NO_CELLS = new Cell[0];
+    private static final int[] NO_SLOTS = new int[0];
+    private static final Range[] NO_RANGES = new Range[0];
+    private static final ExternalReference[] NO_EXTERNALS = new ExternalReference[0];
+    private static final List<Cell> NO_READERS = List.of();
+    private static final int MAGIC = 0x53534855;
+    // Excel's spelling of a numeric error, accepted as an operand
+    private static final String OVERFLOW = "#NUM!";
+    private static final int END = -1;
+    private static final int IO_BUFFER_BYTES = 1 << 20;
+    // Below these sizes a level is cheaper to evaluate on the calling thread
+    private static final int PARALLEL_LEVEL_CELLS = 4096;
+    private static final int TASK_CELLS = 1024;
+
+    // columns[column][row >>> CHUNK_BITS][row & CHUNK_MASK]
+    private long[][][] columns;
+    // Values of the DECIMAL cells by chunk, then by row within the chunk, so
+    // a commit only copies the decimals of the chunks that changed
+    private final ConcurrentHashMap<Long, Map<Integer, BigDecimal>> decimals = new ConcurrentHashMap<>();
+    private final Set<Long> changedDecimals = ConcurrentHashMap.newKeySet();
+    // Cells of any type but LONG; while there are none, formulas skip
+    // reading the types of their operands
+    private final AtomicInteger wideCells = new AtomicInteger();
+    private CellTable cells;
+    // Indexed by column; null where no range reads the column
+    private ColumnIndex[] indexes;
+    private int epoch;
+    // Stack of the dependency walk, kept between walks so that a long chain
+    // does not regrow it every edit
+    private Cell[] path = new Cell[16];
+    private int[] nextDependent = new int[16];
+    // Null for sequential recalculation
+    private final ForkJoinPool pool;
+    // Latest commit, read by any thread without locking. shared holds the
+    // chunk directories of that commit, and the writer copies a chunk
+    // before writing it while shared refers to it. shared is null until the
+    // first commit, so a sheet that never commits copies nothing.
+    private volatile Snapshot published = new Snapshot(0, new long[0][][], Map.of());
+    private long[][][] shared;
+    // Set for a sheet of a workbook, which resolves Sheet2!B7 references
+    private final Workbook workbook;
+    private final String name;
+    // Cells of this sheet reading cells of other sheets, by sheet name and
+    // then by the coordinate read
+    private final Map<String, Map<Long, List<Cell>>> externalReaders = new HashMap<>();
+
+    public Spreadsheet() {
+        this(null);
+    }
+
+    // Recalculates on pool: the cells to recompute are grouped into levels,
+    // where a cell's level is one past the highest level among the cells it
+    // reads, so the cells of one level are independent and are evaluated
+    // concurrently. Levels run one after another, which makes the results
+    // the same as sequential evaluation.
+    public Spreadsheet(ForkJoinPool pool) {
+        this(pool, null, null);
+    }
+
+    Spreadsheet(ForkJoinPool pool, Workbook workbook, String name) {
+        columns = new long[0][][];
+        cells = new CellTable();
+        indexes = new ColumnIndex[0];
+        this.pool = pool;
+        this.workbook = workbook;
+        this.name = name;
+    }
+
+    // Applies a batch of edits, recalculating as they go, and commits the
+    // result. Writers are serialized; readers keep seeing the previous
+    // snapshot until this one is published. If batch throws, nothing is
+    // published, and the edits it made are published by the next commit.
+    public synchronized Snapshot update(Consumer<Spreadsheet> batch) {
+        batch.accept(this);
+        return commit();
+    }
+
+    // Publishes the current values as a new snapshot and returns it
+    public synchronized Snapshot commit() {
+        long[][][] frozen = new long[columns.length][][];
+        for(int column = 0; column < columns.length; column++) {
+            frozen[column] = nonNull(columns[column]) ? columns[column].clone() : null;
+        }
+        Snapshot previous = published;
+        Map<Long, Map<Integer, BigDecimal>> frozenDecimals = previous.decimals;
+        if(!changedDecimals.isEmpty()) {
+            frozenDecimals = new HashMap<>(frozenDecimals);
+            for(Long chunk : changedDecimals) {
+                Map<Integer, BigDecimal> values = decimals.get(chunk);
+                if(values == null || values.isEmpty()) {
+                    frozenDecimals.remove(chunk);
+                } else {
+                    frozenDecimals.put(chunk, Map.copyOf(values));
+                }
+            }
+            changedDecimals.clear();
+        }
+        shared = frozen;
+        published = new Snapshot(previous.version + 1, frozen, frozenDecimals);
+        return published;
+    }
+
+    // The latest published snapshot, without locking
+    public Snapshot snapshot() {
+        return published;
+    }
+
+    // Recomputes the edited cell and its transitive dependents, and nothing
+    // else, in topological order. In a workbook, the sheets reading this
+    // one are brought up to date after.
+    public void setCellContent(String key, String content) {
+        long coordinate = parseCoordinate(key);
+        if(coordinate < 0) {
+            throw new IllegalArgumentException("Not a cell reference: " + key);
+        }
+        edit(rowOf(coordinate), columnOf(coordinate), content);
+        if(nonNull(workbook)) {
+            workbook.propagate(this, coordinate);
+        }
+    }
+
+    private void edit(int row, int column, String content) {
+        long coordinate = (long) row << 32 | column;
+        List<Cell> referenced = new ArrayList<>();
+        List<Range> ranges = new ArrayList<>();
+        List<ExternalReference> externals = new ArrayList<>();
+        Expression formula = compile(content, referenced, ranges, externals);
+        Cell cell = cells.get(coordinate);
+        if(referenced.isEmpty() && ranges.isEmpty() && externals.isEmpty()) {
+            occupy(row, column);
+            assign(row, column, formula);
+            updateIndex(row, column);
+            // A literal may be read through a range without having an entry
+            if(cell == null && nonNull(indexAt(column))) {
+                cell = new Cell(row, column);
+                cells.put(coordinate, cell);
+            }
+            if(nonNull(cell)) {
+                Cell[] previous = unlink(cell);
+                cell.formula = null;
+                cell.source = null;
+                evaluate(dependentsInTopologicalOrder(cell));
+                release(previous);
+                release(cell);
+            }
+            return;
+        }
+        if(cell == null) {
+            cell = new Cell(row, column);
+            cells.put(coordinate, cell);
+        }
+        // Editing a cell never changes who depends on it, so the cells to
+        // recompute are known before its new references are linked
+        List<Cell> order = dependentsInTopologicalOrder(cell);
+        for(Cell reference : referenced) {
+            if(reference.visitedEpoch == epoch) {
+                String cycle = describeCycle(cell, reference);
+                release(referenced.toArray(NO_CELLS));
+                release(cell);
+                throw new CircularReferenceException("Circular reference: " + cycle);
+            }
+        }
+        for(Range range : ranges) {
+            for(Cell dependent : order) {
+                if(range.covers(dependent.row, dependent.column)) {
+                    String cycle = describeCycle(cell, dependent);
+                    release(referenced.toArray(NO_CELLS));
+                    release(cell);
+                    throw new CircularReferenceException("Circular reference: " + cycle);
+                }
+            }
+        }
+        for(ExternalReference external : externals) {
+            String cycle = workbook.pathBetween(external.sheet, name);
+            if(nonNull(cycle)) {
+                release(referenced.toArray(NO_CELLS));
+                release(cell);
+                throw new CircularReferenceException("Circular reference between sheets: " + name + " -> " + cycle);
+            }
+        }
+        // Entries are released only after relinking, as the new formula may
+        // read a cell the old one did. A formula cell always owns its chunk,
+        // so evaluating it never allocates a chunk and concurrent evaluations
+        // write disjoint values.
+        Cell[] previous = unlink(cell);
+        cell.formula = formula;
+        cell.source = withoutWhitespace(content);
+        link(cell, referenced.toArray(NO_CELLS), ranges.toArray(NO_RANGES), externals.toArray(NO_EXTERNALS));
+        release(previous);
+        occupy(row, column);
+        evaluate(order);
+    }
+
+    // Re-evaluates every formula in the sheet
+    public void recalculate() {
+        // Throws on a cycle, which only a bulk import can have introduced
+        epoch++;
+        List<Cell> postOrder = new ArrayList<>();
+        cells.forEach(cell -> {
+            if(cell.visitedEpoch != epoch) {
+                visitDependents(cell, postOrder);
+            }
+        });
+        Collections.reverse(postOrder);
+        evaluate(postOrder);
+        if(nonNull(workbook)) {
+            workbook.propagate(this, -1);
+        }
+    }
+
+    // Re-evaluates the cells reading any of the changed cells of other
+    // sheets, given by sheet name, and their dependents
+    void refresh(Map<String, List<Long>> changed) {
+        epoch++;
+        List<Cell> postOrder = new ArrayList<>();
+        for(Map.Entry<String, List<Long>> sheet : changed.entrySet()) {
+            Map<Long, List<Cell>> readers = externalReaders.get(sheet.getKey());
+            for(int i = 0; nonNull(readers) && i < sheet.getValue().size(); i++) {
+                for(Cell reader : readers.getOrDefault(sheet.getValue().get(i), NO_READERS)) {
+                    if(reader.visitedEpoch != epoch) {
+                        visitDependents(reader, postOrder);
+                    }
+                }
+            }
+        }
+        Collections.reverse(postOrder);
+        evaluate(postOrder);
+    }
+
+    // Names of the other sheets this sheet reads
+    Set<String> referencedSheets() {
+        return Set.copyOf(externalReaders.keySet());
+    }
+
+    String name() {
+        return name;
+    }
+
+    // A Long, Double or BigDecimal; throws ArithmeticException if the cell
+    // overflowed
+    public Number getCellContent(String key) {
+        long coordinate = parseCoordinate(key);
+        if(coordinate < 0) {
+            return 0L;
+        }
+        return valueAt(rowOf(coordinate), columnOf(coordinate));
+    }
+
+    // Reads a LONG cell without boxing; throws ArithmeticException for any
+    // other type
+    public long getLong(String key) {
+        long coordinate = parseCoordinate(key);
+        if(coordinate < 0) {
+            return 0;
+        }
+        return longOf(chunkAt(rowOf(coordinate), columnOf(coordinate)), rowOf(coordinate), columnOf(coordinate));
+    }
+
+    // Reads any numeric cell as a double without boxing
+    public double getDouble(String key) {
+        long coordinate = parseCoordinate(key);
+        if(coordinate < 0) {
+            return 0;
+        }
+        return checkedDoubleOf(chunkAt(rowOf(coordinate), columnOf(coordinate)), rowOf(coordinate),
+                columnOf(coordinate), decimals);
+    }
+
+    public static Spreadsheet importCsv(Path csv) {
+        return importCsv(csv, null);
+    }
+
+    // Builds a sheet from CSV, the first record being row 1 and the first
+    // field column A. The file streams through one fixed buffer: integer
+    // fields go straight into the column chunks and anything else is
+    // compiled as a formula, so text is rejected, and linked unevaluated. One recalculation at
+    // the end evaluates every formula, and throws if they form a cycle.
+    public static Spreadsheet importCsv(Path csv, ForkJoinPool pool) {
+        Spreadsheet sheet = new Spreadsheet(pool);
+        try(FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            sheet.readCsv(channel);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for(ColumnIndex index : sheet.indexes) {
+            if(nonNull(index)) {
+                index.build(Math.max(index.leaves << BLOCK_BITS, sheet.allocatedRows(index.column)));
+            }
+        }
+        sheet.recalculate();
+        return sheet;
+    }
+
+    // Writes one record per row up to the last occupied one: formulas as
+    // their source, literals as their value, empty cells as empty fields
+    public void exportCsv(Path csv) {
+        int lastRow = -1;
+        for(int column = 0; column < columns.length; column++) {
+            lastRow = Math.max(lastRow, lastOccupiedRow(column));
+        }
+        try(FileChannel channel = FileChannel.open(csv, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output output = new Output(channel);
+            StringBuilder record = new StringBuilder();
+            for(int row = 0; row <= lastRow; row++) {
+                record.setLength(0);
+                int previous = 0;
+                for(int column = 0; column < columns.length; column++) {
+                    long[] chunk = chunkAt(row, column);
+                    if(chunk == null || !isOccupied(chunk, row)) {
+                        continue;
+                    }
+                    for(; previous < column; previous++) {
+                        record.append(',');
+                    }
+                    Cell cell = cells.get((long) row << 32 | column);
+                    if(nonNull(cell) && nonNull(cell.formula)) {
+                        record.append(cell.source);
+                    } else {
+                        record.append(literalSource(row, column));
+                    }
+                }
+                byte[] bytes = record.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+                output.reserve(bytes.length).put(bytes);
+            }
+            output.drain();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Binary image of the sheet: every allocated chunk verbatim, values,
+    // occupancy and types together, then each DECIMAL value and the source
+    // of each formula. The chunks hold the computed values, so loading does
+    // not recalculate. The file is written aside and moved into place.
+    public void save(Path file) {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output output = new Output(channel);
+            output.reserve(4).putInt(MAGIC);
+            for(int column = 0; column < columns.length; column++) {
+                long[][] chunks = columns[column];
+                for(int chunk = 0; nonNull(chunks) && chunk < chunks.length; chunk++) {
+                    if(nonNull(chunks[chunk])) {
+                        output.reserve(8).putInt(column).putInt(chunk);
+                        output.putLongs(chunks[chunk]);
+                    }
+                }
+            }
+            output.reserve(4).putInt(END);
+            for(var chunk : decimals.entrySet()) {
+                for(var decimal : chunk.getValue().entrySet()) {
+                    byte[] digits = decimal.getValue().toString().getBytes(StandardCharsets.UTF_8);
+                    output.reserve(12 + digits.length).putInt(rowOf(chunk.getKey()) << CHUNK_BITS | decimal.getKey())
+                          .putInt(columnOf(chunk.getKey())).putInt(digits.length).put(digits);
+                }
+            }
+            output.reserve(4).putInt(END);
+            cells.forEach(cell -> {
+                if(nonNull(cell.formula)) {
+                    byte[] source = cell.source.getBytes(StandardCharsets.UTF_8);
+                    output.reserve(12 + source.length).putInt(cell.row).putInt(cell.column)
+                          .putInt(source.length).put(source);
+                }
+            });
+            output.reserve(4).putInt(END);
+            output.drain();
+            channel.force(true);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Spreadsheet load(Path file) {
+        return load(file, null);
+    }
+
+    public static Spreadsheet load(Path file, ForkJoinPool pool) {
+        Spreadsheet sheet = new Spreadsheet(pool);
+        sheet.read(file);
+        return sheet;
+    }
+
+    // Fills an empty sheet from a file written by save
+    void read(Path file) {
+        Spreadsheet sheet = this;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input input = new Input(channel);
+            if(input.require(4).getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a spreadsheet file: " + file);
+            }
+            for(int column = input.require(4).getInt(); column != END; column = input.require(4).getInt()) {
+                int chunk = input.require(4).getInt();
+                if(column < 0 || column >= MAX_COLUMNS || chunk < 0 || chunk >= MAX_ROWS >>> CHUNK_BITS) {
+                    throw new IllegalArgumentException("Corrupt spreadsheet file: " + file);
+                }
+                long[] values = sheet.allocateChunk(chunk << CHUNK_BITS, column);
+                input.getLongs(values);
+                for(int word = 0; word < CHUNK_WORDS; word++) {
+                    sheet.wideCells.addAndGet(Long.bitCount(values[TYPE_LOW + word] | values[TYPE_HIGH + word]));
+                }
+            }
+            for(int row = input.require(4).getInt(); row != END; row = input.require(4).getInt()) {
+                ByteBuffer header = input.require(8);
+                int column = header.getInt();
+                byte[] digits = new byte[checkedLength(file, input, row, column, header.getInt())];
+                input.require(digits.length).get(digits);
+                BigDecimal value;
+                try {
+                    value = new BigDecimal(new String(digits, StandardCharsets.UTF_8));
+                } catch(NumberFormatException e) {
+                    throw new IllegalArgumentException("Corrupt spreadsheet file: " + file, e);
+                }
+                sheet.putDecimal(row, column, value);
+            }
+            // Chunks come first, so column indexes built while linking see
+            // final values
+            for(int row = input.require(4).getInt(); row != END; row = input.require(4).getInt()) {
+                ByteBuffer header = input.require(8);
+                int column = header.getInt();
+                byte[] source = new byte[checkedLength(file, input, row, column, header.getInt())];
+                input.require(source.length).get(source);
+                sheet.place(row, column, new String(source, StandardCharsets.UTF_8));
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Length of a record's bytes, once the record is known to fit the file
+    // and its cell the sheet
+    private static int checkedLength(Path file, Input input, int row, int column, int length) {
+        if(row < 0 || row >= MAX_ROWS || column < 0 || column >= MAX_COLUMNS || length < 0
+           || length > input.remaining()) {
+            throw new IllegalArgumentException("Corrupt spreadsheet file: " + file);
+        }
+        return length;
+    }
+
+    // RFC 4180 fields: quoted fields may hold commas, newlines and doubled
+    // quotes. State carries over buffer refills, so records may straddle
+    // them.
+    private void readCsv(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_BYTES);
+        byte[] field = new byte[64];
+        int length = 0;
+        boolean quoted = false;
+        boolean closedQuote = false;
+        int row = 0;
+        int column = 0;
+        while(channel.read(buffer) >= 0) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if(quoted) {
+                    if(b == '"') {
+                        quoted = false;
+                        closedQuote = true;
+                        continue;
+                    }
+                } else if(b == '"') {
+                    // A quote right after a closing one is an escaped quote
+                    if(closedQuote) {
+                        field = append(field, length++, b);
+                    }
+                    quoted = true;
+                    closedQuote = false;
+                    continue;
+                } else if(b == ',' || b == '\n') {
+                    placeField(row, column, field, length);
+                    length = 0;
+                    closedQuote = false;
+                    if(b == ',') {
+                        column++;
+                    } else {
+                        row++;
+                        column = 0;
+                    }
+                    continue;
+                } else if(b == '\r') {
+                    continue;
+                }
+                closedQuote = false;
+                field = append(field, length++, b);
+            }
+            buffer.clear();
+        }
+        if(length > 0) {
+            placeField(row, column, field, length);
+        }
+    }
+
+    private static byte[] append(byte[] field, int length, byte b) {
+        if(length == field.length) {
+            field = Arrays.copyOf(field, length * 2);
+        }
+        field[length] = b;
+        return field;
+    }
+
+    // Plain integers of up to 18 digits, which cannot overflow a long, skip
+    // the String and the compiler
+    private void placeField(int row, int column, byte[] field, int length) {
+        if(length == 0) {
+            return;
+        }
+        if(row >= MAX_ROWS || column >= MAX_COLUMNS) {
+            throw new IllegalArgumentException("CSV exceeds the sheet at " + keyOf(row, column));
+        }
+        boolean negative = field[0] == '-';
+        long value = 0;
+        int i = negative ? 1 : 0;
+        int digits = negative ? 19 : 18;
+        for(; i < length && i < digits && field[i] >= '0' && field[i] <= '9'; i++) {
+            value = value * 10 + (field[i] - '0');
+        }
+        if(i == length && length > (negative ? 1 : 0)) {
+            occupy(row, column);
+            storeLong(row, column, negative ? -value : value);
+        } else {
+            place(row, column, new String(field, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Sets a cell of a sheet being filled in bulk: formulas are linked but
+    // not evaluated, and no cycle check is made
+    private void place(int row, int column, String content) {
+        List<Cell> referenced = new ArrayList<>();
+        List<Range> ranges = new ArrayList<>();
+        List<ExternalReference> externals = new ArrayList<>();
+        Expression formula = compile(content, referenced, ranges, externals);
+        occupy(row, column);
+        if(referenced.isEmpty() && ranges.isEmpty() && externals.isEmpty()) {
+            assign(row, column, formula);
+            return;
+        }
+        long coordinate = (long) row << 32 | column;
+        Cell cell = cells.get(coordinate);
+        if(cell == null) {
+            cell = new Cell(row, column);
+            cells.put(coordinate, cell);
+        }
+        cell.formula = formula;
+        cell.source = withoutWhitespace(content);
+        link(cell, referenced.toArray(NO_CELLS), ranges.toArray(NO_RANGES), externals.toArray(NO_EXTERNALS));
+    }
+
+    private int typeAt(int row, int column) {
+        long[] chunk = chunkAt(row, column);
+        return chunk == null ? LONG : typeOf(chunk, row);
+    }
+
+    private static int typeOf(long[] chunk, int row) {
+        int word = (row & CHUNK_MASK) >>> BLOCK_BITS;
+        int bit = row & (BLOCK_ROWS - 1);
+        return (int) (chunk[TYPE_LOW + word] >>> bit & 1 | (chunk[TYPE_HIGH + word] >>> bit & 1) << 1);
+    }
+
+    // The raw value, which is the value itself for a LONG cell
+    private long longAt(int row, int column) {
+        long[] chunk = chunkAt(row, column);
+        return chunk == null ? 0 : chunk[row & CHUNK_MASK];
+    }
+
+    private double doubleAt(int row, int column) {
+        return doubleOf(chunkAt(row, column), row, column, decimals);
+    }
+
+    private BigDecimal decimalAt(int row, int column) {
+        switch(typeAt(row, column)) {
+            case DOUBLE:
+                return new BigDecimal(Double.longBitsToDouble(longAt(row, column)));
+            case DECIMAL:
+                return decimalOf(decimals, row, column);
+            case ERROR:
+                throw new ArithmeticException(describe(row, column));
+            default:
+                return BigDecimal.valueOf(longAt(row, column));
+        }
+    }
+
+    private Number valueAt(int row, int column) {
+        return valueOf(chunkAt(row, column), row, column, decimals);
+    }
+
+    // Key of the decimals of the chunk holding a cell: the chunk's index in
+    // its column, then the column
+    private static long decimalChunkOf(int row, int column) {
+        return (long) (row >>> CHUNK_BITS) << 32 | column;
+    }
+
+    private static BigDecimal decimalOf(Map<Long, Map<Integer, BigDecimal>> decimals, int row, int column) {
+        return decimals.get(decimalChunkOf(row, column)).get(row & CHUNK_MASK);
+    }
+
+    // Reads shared by the sheet and its snapshots; chunk may be null
+    private static double doubleOf(long[] chunk, int row, int column, Map<Long, Map<Integer, BigDecimal>> decimals) {
+        if(chunk == null) {
+            return 0;
+        }
+        switch(typeOf(chunk, row)) {
+            case DOUBLE:
+                return Double.longBitsToDouble(chunk[row & CHUNK_MASK]);
+            case DECIMAL:
+                return decimalOf(decimals, row, column).doubleValue();
+            case ERROR:
+                return Double.NaN;
+            default:
+                return chunk[row & CHUNK_MASK];
+        }
+    }
+
+    // Only an ERROR reads as NaN, as non-finite results are stored as ERRORs
+    private static double checkedDoubleOf(long[] chunk, int row, int column,
+                                          Map<Long, Map<Integer, BigDecimal>> decimals) {
+        double value = doubleOf(chunk, row, column, decimals);
+        if(Double.isNaN(value)) {
+            throw new ArithmeticException(describe(row, column));
+        }
+        return value;
+    }
+
+    private static long longOf(long[] chunk, int row, int column) {
+        int type = chunk == null ? LONG : typeOf(chunk, row);
+        if(type == ERROR) {
+            throw new ArithmeticException(describe(row, column));
+        }
+        if(type != LONG) {
+            throw new ArithmeticException(keyOf(row, column) + " does not hold a long");
+        }
+        return chunk == null ? 0 : chunk[row & CHUNK_MASK];
+    }
+
+    private static Number valueOf(long[] chunk, int row, int column, Map<Long, Map<Integer, BigDecimal>> decimals) {
+        if(chunk == null) {
+            return 0L;
+        }
+        switch(typeOf(chunk, row)) {
+            case DOUBLE:
+                return Double.longBitsToDouble(chunk[row & CHUNK_MASK]);
+            case DECIMAL:
+                return decimalOf(decimals, row, column);
+            case ERROR:
+                throw new ArithmeticException(describe(row, column));
+            default:
+                return chunk[row & CHUNK_MASK];
+        }
+    }
+
+    private static String describe(int row, int column) {
+        return "Numeric overflow in " + keyOf(row, column);
+    }
+
+    // How a literal is written back out: a DOUBLE always with a point, a
+    // DECIMAL with an M and an ERROR, such as 9223372036854775807+1, as
+    // #NUM!, so that each compiles back to the same type
+    private String literalSource(int row, int column) {
+        switch(typeAt(row, column)) {
+            case DOUBLE:
+                return formatDouble(doubleAt(row, column));
+            case DECIMAL:
+                return formatDecimal(decimalAt(row, column));
+            case ERROR:
+                return OVERFLOW;
+            default:
+                return Long.toString(longAt(row, column));
+        }
+    }
+
+    private static String formatDouble(double value) {
+        String plain = new BigDecimal(Double.toString(value)).toPlainString();
+        return plain.indexOf('.') < 0 ? plain + ".0" : plain;
+    }
+
+    private static String formatDecimal(BigDecimal value) {
+        return value.toPlainString() + "M";
+    }
+
+    // Evaluates expression into a cell that has been occupied, storing an
+    // ERROR if it overflows
+    private void assign(int row, int column, Expression expression) {
+        try {
+            switch(expression.type()) {
+                case LONG:
+                    storeLong(row, column, expression.evaluateLong());
+                    return;
+                case DECIMAL:
+                    storeDecimal(row, column, expression.evaluateDecimal());
+                    return;
+                case DOUBLE:
+                    double value = expression.evaluateDouble();
+                    if(Double.isFinite(value)) {
+                        storeDouble(row, column, value);
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch(ArithmeticException e) {
+            // Overflow, stored as an ERROR below
+        }
+        store(row, column, ERROR, 0);
+    }
+
+    private void storeLong(int row, int column, long value) {
+        store(row, column, LONG, value);
+    }
+
+    private void storeDouble(int row, int column, double value) {
+        store(row, column, DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    private void storeDecimal(int row, int column, BigDecimal value) {
+        putDecimal(row, column, value);
+        store(row, column, DECIMAL, 0);
+    }
+
+    private void putDecimal(int row, int column, BigDecimal value) {
+        long chunk = decimalChunkOf(row, column);
+        decimals.computeIfAbsent(chunk, key -> new ConcurrentHashMap<>()).put(row & CHUNK_MASK, value);
+        changedDecimals.add(chunk);
+    }
+
+    private void store(int row, int column, int type, long value) {
+        long[] chunk = writableChunk(row, column);
+        chunk[row & CHUNK_MASK] = value;
+        int previous = typeOf(chunk, row);
+        if(previous == type) {
+            return;
+        }
+        if(previous == DECIMAL) {
+            long decimalChunk = decimalChunkOf(row, column);
+            decimals.get(decimalChunk).remove(row & CHUNK_MASK);
+            changedDecimals.add(decimalChunk);
+        }
+        if(previous == LONG || type == LONG) {
+            wideCells.addAndGet(previous == LONG ? 1 : -1);
+        }
+        int word = (row & CHUNK_MASK) >>> BLOCK_BITS;
+        long bit = 1L << (row & (BLOCK_ROWS - 1));
+        if((type & 1) != 0) {
+            WORDS.getAndBitwiseOr(chunk, TYPE_LOW + word, bit);
+        } else {
+            WORDS.getAndBitwiseAnd(chunk, TYPE_LOW + word, ~bit);
+        }
+        if((type & 2) != 0) {
+            WORDS.getAndBitwiseOr(chunk, TYPE_HIGH + word, bit);
+        } else {
+            WORDS.getAndBitwiseAnd(chunk, TYPE_HIGH + word, ~bit);
+        }
+    }
+
+    // Marks a cell as given content, allocating its chunk if needed
+    private void occupy(int row, int column) {
+        long[] chunk = writableChunk(row, column);
+        if(chunk == null) {
+            chunk = allocateChunk(row, column);
+        }
+        chunk[OCCUPANCY + ((row & CHUNK_MASK) >>> BLOCK_BITS)] |= 1L << (row & (BLOCK_ROWS - 1));
+    }
+
+    private static boolean isOccupied(long[] chunk, int row) {
+        return (chunk[OCCUPANCY + ((row & CHUNK_MASK) >>> BLOCK_BITS)] & 1L << (row & (BLOCK_ROWS - 1))) != 0;
+    }
+
+    private int allocatedRows(int column) {
+        return column < columns.length && nonNull(columns[column]) ? columns[column].length << CHUNK_BITS : 0;
+    }
+
+    private int lastOccupiedRow(int column) {
+        long[][] chunks = columns[column];
+        for(int chunk = chunks == null ? -1 : chunks.length - 1; chunk >= 0; chunk--) {
+            for(int word = CHUNK_WORDS - 1; nonNull(chunks[chunk]) && word >= 0; word--) {
+                long bits = chunks[chunk][OCCUPANCY + word];
+                if(bits != 0) {
+                    return (chunk << CHUNK_BITS) + (word << BLOCK_BITS) + 63 - Long.numberOfLeadingZeros(bits);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private ColumnIndex indexAt(int column) {
+        return column < indexes.length ? indexes[column] : null;
+    }
+
+    private void updateIndex(int row, int column) {
+        ColumnIndex index = indexAt(column);
+        if(nonNull(index)) {
+            index.update(row);
+        }
+    }
+
+    private long[] chunkAt(int row, int column) {
+        if(column >= columns.length) {
+            return null;
+        }
+        long[][] chunks = columns[column];
+        int chunk = row >>> CHUNK_BITS;
+        if(chunks == null || chunk >= chunks.length) {
+            return null;
+        }
+        return chunks[chunk];
+    }
+
+    // The chunk of a cell, first replaced by a copy if the latest commit
+    // shares it
+    private long[] writableChunk(int row, int column) {
+        long[] chunk = chunkAt(row, column);
+        int index = row >>> CHUNK_BITS;
+        if(nonNull(chunk) && nonNull(shared) && column < shared.length && nonNull(shared[column])
+           && index < shared[column].length && shared[column][index] == chunk) {
+            chunk = chunk.clone();
+            columns[column][index] = chunk;
+        }
+        return chunk;
+    }
+
+    private long[] allocateChunk(int row, int column) {
+        int chunk = row >>> CHUNK_BITS;
+        if(column >= columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(column + 1, columns.length * 2));
+        }
+        if(columns[column] == null) {
+            columns[column] = new long[chunk + 1][];
+        } else if(chunk >= columns[column].length) {
+            columns[column] = Arrays.copyOf(columns[column], Math.max(chunk + 1, columns[column].length * 2));
+        }
+        return columns[column][chunk] = new long[CHUNK_LONGS];
+    }
+
+    // A formula is a sum of operands joined by + and -, where an operand is
+    // a number, a cell reference such as AB12, or an aggregate such as
+    // SUM(A1:B10) or MAX(C3); whitespace is ignored, an empty operand counts
+    // as 0 and anything else is rejected. A number is a LONG such as 12, a
+    // DOUBLE such as 1.5 or 1.5E-3, or a DECIMAL such as 0.1M, 15E-1M or an
+    // integer too large for a long; #NUM! is an ERROR. In a workbook, Sheet2!B7 reads a cell of
+    // another sheet; any other operand with a ! in it, such as a range of
+    // another sheet, is rejected. Referenced cells get a side table entry so
+    // they can carry their dependents.
+    private Expression compile(String content, List<Cell> referenced, List<Range> ranges,
+                               List<ExternalReference> externals) {
+        String expression = withoutWhitespace(content);
+        // LONG constants fold into one; the rest join the other operands
+        long constant = 0;
+        List<long[]> terms = new ArrayList<>();
+        List<Expression> others = new ArrayList<>();
+        List<Integer> otherSigns = new ArrayList<>();
+        int sign = 1;
+        int i = 0;
+        while(i < expression.length()) {
+            int start = i;
+            // The sign of an exponent belongs to its number
+            while(i < expression.length() && (expression.charAt(i) != '+' && expression.charAt(i) != '-'
+                                              || isMantissa(expression, start, i - 1))) {
+                i++;
+            }
+            String operand = expression.substring(start, i);
+            int bang = operand.indexOf('!');
+            if(bang > 0 && nonNull(name) && operand.substring(0, bang).equals(name)) {
+                operand = operand.substring(bang + 1);
+                bang = -1;
+            }
+            if(bang > 0 && isReference(operand.substring(bang + 1))) {
+                String sheet = operand.substring(0, bang);
+                long coordinate = parseCoordinate(operand.substring(bang + 1));
+                if(workbook == null) {
+                    throw new IllegalArgumentException("Sheet reference outside a workbook: " + operand);
+                }
+                if(coordinate < 0 || !workbook.contains(sheet)) {
+                    throw new IllegalArgumentException("Reference out of range: " + operand);
+                }
+                ExternalReference external = new ExternalReference(sheet, rowOf(coordinate), columnOf(coordinate));
+                externals.add(external);
+                others.add(external);
+                otherSigns.add(sign);
+            } else if(bang >= 0 && !operand.equals(OVERFLOW)) {
+                throw new IllegalArgumentException("A sheet reference must name a single cell: " + operand);
+            } else if(isNumber(operand)) {
+                Constant number = parseNumber(operand);
+                try {
+                    if(number.type != LONG) {
+                        throw new ArithmeticException("Not foldable");
+                    }
+                    constant = sign > 0 ? Math.addExact(constant, number.longValue)
+                                        : Math.subtractExact(constant, number.longValue);
+                } catch(ArithmeticException e) {
+                    others.add(number);
+                    otherSigns.add(sign);
+                }
+            } else if(operand.equals(OVERFLOW)) {
+                others.add(Constant.ofError());
+                otherSigns.add(sign);
+            } else if(isReference(operand)) {
+                long coordinate = parseCoordinate(operand);
+                if(coordinate < 0) {
+                    throw new IllegalArgumentException("Reference out of range: " + operand);
+                }
+                terms.add(new long[] {coordinate, sign});
+                Cell target = cells.get(coordinate);
+                if(target == null) {
+                    target = new Cell(rowOf(coordinate), columnOf(coordinate));
+                    cells.put(coordinate, target);
+                }
+                if(!referenced.contains(target)) {
+                    referenced.add(target);
+                }
+            } else if(isAggregate(operand)) {
+                int open = operand.indexOf('(');
+                String[] bounds = operand.substring(open + 1, operand.length() - 1).split(":");
+                long from = parseCoordinate(bounds[0]);
+                long to = parseCoordinate(bounds[bounds.length - 1]);
+                if(from < 0 || to < 0) {
+                    throw new IllegalArgumentException("Range out of bounds: " + operand);
+                }
+                Range range = new Range(from, to);
+                ranges.add(range);
+                others.add(new Aggregate(Function.valueOf(operand.substring(0, open)), range));
+                otherSigns.add(sign);
+            } else if(!operand.isEmpty()) {
+                throw new IllegalArgumentException("Not a number, reference or function: " + operand);
+            }
+            if(i < expression.length()) {
+                sign = expression.charAt(i) == '+' ? 1 : -1;
+                i++;
+            }
+        }
+        if(terms.isEmpty() && others.isEmpty()) {
+            return Constant.ofLong(constant);
+        }
+        if(constant == 0 && terms.isEmpty() && others.size() == 1 && otherSigns.get(0) == 1) {
+            return others.get(0);
+        }
+        if(constant == 0 && terms.size() == 1 && terms.get(0)[1] == 1 && others.isEmpty()) {
+            return new Reference(rowOf(terms.get(0)[0]), columnOf(terms.get(0)[0]));
+        }
+        int[] rows = new int[terms.size()];
+        int[] termColumns = new int[terms.size()];
+        int[] signs = new int[terms.size()];
+        for(int j = 0; j < rows.length; j++) {
+            rows[j] = rowOf(terms.get(j)[0]);
+            termColumns[j] = columnOf(terms.get(j)[0]);
+            signs[j] = (int) terms.get(j)[1];
+        }
+        int[] signsOfOthers = new int[others.size()];
+        for(int j = 0; j < signsOfOthers.length; j++) {
+            signsOfOthers[j] = otherSigns.get(j);
+        }
+        return new Sum(constant, rows, termColumns, signs, others.toArray(new Expression[0]), signsOfOthers);
+    }
+
+    private static String withoutWhitespace(String content) {
+        StringBuilder stripped = new StringBuilder(content.length());
+        for(int i = 0; i < content.length(); i++) {
+            if(!Character.isWhitespace(content.charAt(i))) {
+                stripped.append(content.charAt(i));
+            }
+        }
+        return stripped.toString();
+    }
+
+    private static Constant parseNumber(String operand) {
+        if(operand.endsWith("M")) {
+            return Constant.ofDecimal(new BigDecimal(operand.substring(0, operand.length() - 1)));
+        }
+        if(operand.indexOf('.') >= 0 || operand.indexOf('E') >= 0) {
+            return Constant.ofDouble(Double.parseDouble(operand));
+        }
+        try {
+            return Constant.ofLong(Long.parseLong(operand));
+        } catch(NumberFormatException e) {
+            return Constant.ofDecimal(new BigDecimal(operand));
+        }
+    }
+
+    // A function name, then one reference or two joined by a colon, in
+    // parentheses
+    private static boolean isAggregate(String operand) {
+        int open = operand.indexOf('(');
+        if(open < 0 || !operand.endsWith(")")) {
+            return false;
+        }
+        boolean known = false;
+        for(Function function : Function.values()) {
+            known |= function.name().equals(operand.substring(0, open));
+        }
+        String[] bounds = operand.substring(open + 1, operand.length() - 1).split(":", -1);
+        return known && bounds.length <= 2 && isReference(bounds[0]) && isReference(bounds[bounds.length - 1]);
+    }
+
+    // Digits, optionally with a fraction, optionally followed by M
+    // Digits with at most one point between them, then an optional
+    // exponent such as E-3 and an optional M
+    private static boolean isNumber(String operand) {
+        int end = operand.endsWith("M") ? operand.length() - 1 : operand.length();
+        int exponent = end == 0 ? -1 : operand.lastIndexOf('E', end - 1);
+        if(exponent >= 0) {
+            int digits = exponent + 1;
+            if(digits < end && (operand.charAt(digits) == '+' || operand.charAt(digits) == '-')) {
+                digits++;
+            }
+            if(digits == end) {
+                return false;
+            }
+            for(int i = digits; i < end; i++) {
+                if(operand.charAt(i) < '0' || operand.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            end = exponent;
+        }
+        int point = operand.indexOf('.');
+        if(point == 0 || point == end - 1 || end == 0) {
+            return false;
+        }
+        for(int i = 0; i < end; i++) {
+            if(i != point && (operand.charAt(i) < '0' || operand.charAt(i) > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether expression[start, e] is a number's digits and point followed
+    // by the E of an exponent
+    private static boolean isMantissa(String expression, int start, int e) {
+        if(e <= start || expression.charAt(e) != 'E') {
+            return false;
+        }
+        for(int i = start; i < e; i++) {
+            char c = expression.charAt(i);
+            if((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One or more capital letters followed by one or more digits
+    private static boolean isReference(String operand) {
+        int i = 0;
+        while(i < operand.length() && operand.charAt(i) >= 'A' && operand.charAt(i) <= 'Z') {
+            i++;
+        }
+        if(i == 0 || i == operand.length()) {
+            return false;
+        }
+        for(; i < operand.length(); i++) {
+            if(operand.charAt(i) < '0' || operand.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Packs a key such as AB12 into (row << 32 | column), both zero-based,
+    // or returns -1 if it is not a reference inside the sheet's limits
+    private static long parseCoordinate(String key) {
+        if(!isReference(key)) {
+            return -1;
+        }
+        int i = 0;
+        long column = 0;
+        while(key.charAt(i) >= 'A' && key.charAt(i) <= 'Z') {
+            column = column * 26 + (key.charAt(i) - 'A' + 1);
+            if(column > MAX_COLUMNS) {
+                return -1;
+            }
+            i++;
+        }
+        long row = 0;
+        for(; i < key.length(); i++) {
+            row = row * 10 + (key.charAt(i) - '0');
+            if(row > MAX_ROWS) {
+                return -1;
+            }
+        }
+        if(row == 0) {
+            return -1;
+        }
+        return (row - 1) << 32 | (column - 1);
+    }
+
+    private static int rowOf(long coordinate) {
+        return (int) (coordinate >>> 32);
+    }
+
+    private static int columnOf(long coordinate) {
+        return (int) coordinate;
+    }
+
+    private static String keyOf(int row, int column) {
+        return columnName(column) + (row + 1);
+    }
+
+    private static String columnName(int column) {
+        StringBuilder name = new StringBuilder();
+        for(int c = column + 1; c > 0; c = (c - 1) / 26) {
+            name.append((char) ('A' + (c - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+
+    // Evaluates cells given in topological order, by level on the pool when
+    // there is one and enough work to share
+    private void evaluate(List<Cell> order) {
+        List<Long> changed = nonNull(workbook) ? workbook.changes(name) : null;
+        for(int i = 0; nonNull(changed) && i < order.size(); i++) {
+            changed.add((long) order.get(i).row << 32 | order.get(i).column);
+        }
+        if(pool == null || order.size() < PARALLEL_LEVEL_CELLS) {
+            for(Cell cell : order) {
+                cell.evaluate();
+                updateIndex(cell.row, cell.column);
+            }
+            return;
+        }
+        // Levels are pushed forward along the dependents, which covers range
+        // readers too; everything the walk reaches was visited by it
+        for(Cell cell : order) {
+            cell.level = 0;
+        }
+        int levels = 0;
+        for(Cell cell : order) {
+            levels = Math.max(levels, cell.level + 1);
+            for(int slot = 0, slots = cell.dependentSlots(); slot < slots; slot++) {
+                Cell dependent = cell.dependentAt(slot);
+                if(nonNull(dependent) && dependent.level <= cell.level) {
+                    dependent.level = cell.level + 1;
+                }
+            }
+        }
+        // Counting sort of the cells by level
+        int[] start = new int[levels + 1];
+        for(Cell cell : order) {
+            start[cell.level + 1]++;
+        }
+        for(int level = 0; level < levels; level++) {
+            start[level + 1] += start[level];
+        }
+        Cell[] byLevel = new Cell[order.size()];
+        int[] next = Arrays.copyOf(start, levels);
+        for(Cell cell : order) {
+            byLevel[next[cell.level]++] = cell;
+        }
+        for(int level = 0; level < levels; level++) {
+            if(start[level + 1] - start[level] < PARALLEL_LEVEL_CELLS) {
+                for(int i = start[level]; i < start[level + 1]; i++) {
+                    byLevel[i].evaluate();
+                }
+            } else {
+                // Chunks are copied here, as tasks sharing a chunk would
+                // race to copy it
+                for(int i = start[level]; nonNull(shared) && i < start[level + 1]; i++) {
+                    writableChunk(byLevel[i].row, byLevel[i].column);
+                }
+                pool.invoke(new LevelTask(byLevel, start[level], start[level + 1]));
+            }
+            // Column indexes are shared, so they catch up between levels
+            if(indexes.length > 0) {
+                for(int i = start[level]; i < start[level + 1]; i++) {
+                    updateIndex(byLevel[i].row, byLevel[i].column);
+                }
+            }
+        }
+    }
+
+    // Cells reachable from cell over the reverse edges, in topological order
+    private List<Cell> dependentsInTopologicalOrder(Cell cell) {
+        epoch++;
+        List<Cell> postOrder = new ArrayList<>();
+        visitDependents(cell, postOrder);
+        Collections.reverse(postOrder);
+        return postOrder;
+    }
+
+    // Depth-first over the reverse edges from cell, iteratively so that long
+    // chains cannot overflow the stack. Reverse post-order puts every cell
+    // after the cells it reads. Each cell visited is stamped with the
+    // current epoch and remembers the cell it was reached from.
+    // A dependent already visited but not yet finished is on the current
+    // path, which closes a cycle; setCellContent checks before it links, so
+    // only a bulk import can get here with one.
+    private void visitDependents(Cell cell, List<Cell> postOrder) {
+        int depth = 0;
+        cell.visitedEpoch = epoch;
+        cell.reachedFrom = null;
+        path[0] = cell;
+        nextDependent[0] = 0;
+        while(depth >= 0) {
+            Cell current = path[depth];
+            if(nextDependent[depth] < current.dependentSlots()) {
+                Cell dependent = current.dependentAt(nextDependent[depth]++);
+                if(nonNull(dependent) && dependent.visitedEpoch != epoch) {
+                    dependent.visitedEpoch = epoch;
+                    dependent.reachedFrom = current;
+                    if(++depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                        nextDependent = Arrays.copyOf(nextDependent, depth * 2);
+                    }
+                    path[depth] = dependent;
+                    nextDependent[depth] = 0;
+                } else if(nonNull(dependent) && dependent.finishedEpoch != epoch) {
+                    Arrays.fill(path, 0, depth + 1, null);
+                    throw new CircularReferenceException("Circular reference: " + describeCycle(dependent, current));
+                }
+            } else {
+                current.finishedEpoch = epoch;
+                postOrder.add(current);
+                path[depth--] = null;
+            }
+        }
+    }
+
+    // cell reads reference, which was reached from cell by the walk
+    private String describeCycle(Cell cell, Cell reference) {
+        StringBuilder cycle = new StringBuilder(cell.key());
+        for(Cell step = reference; nonNull(step); step = step.reachedFrom) {
+            cycle.append(" -> ").append(step.key());
+            if(step == cell) {
+                break;
+            }
+        }
+        return cycle.toString();
+    }
+
+    private void link(Cell cell, Cell[] references, Range[] ranges, ExternalReference[] externals) {
+        cell.references = references;
+        cell.slots = new int[references.length];
+        for(int i = 0; i < references.length; i++) {
+            cell.slots[i] = references[i].addDependent(cell);
+        }
+        cell.ranges = ranges;
+        for(Range range : ranges) {
+            range.owner = cell;
+            for(int column = range.fromColumn; column <= range.toColumn; column++) {
+                if(column >= indexes.length) {
+                    indexes = Arrays.copyOf(indexes, Math.max(column + 1, indexes.length * 2));
+                }
+                if(indexes[column] == null) {
+                    indexes[column] = new ColumnIndex(column, Math.max(allocatedRows(column), range.toRow + 1));
+                }
+                indexes[column].ranges.add(range);
+            }
+        }
+        cell.externals = externals;
+        for(ExternalReference external : externals) {
+            externalReaders.computeIfAbsent(external.sheet, sheet -> new HashMap<>())
+                           .computeIfAbsent((long) external.row << 32 | external.column, read -> new ArrayList<>())
+                           .add(cell);
+        }
+    }
+
+    // Returns the cells the formula used to read. A column index goes away
+    // with the last range reading its column.
+    private Cell[] unlink(Cell cell) {
+        Cell[] previous = cell.references;
+        for(int i = 0; i < previous.length; i++) {
+            previous[i].removeDependent(cell.slots[i]);
+        }
+        for(Range range : cell.ranges) {
+            for(int column = range.fromColumn; column <= range.toColumn; column++) {
+                indexes[column].ranges.remove(range);
+                if(indexes[column].ranges.isEmpty()) {
+                    indexes[column] = null;
+                }
+            }
+        }
+        for(ExternalReference external : cell.externals) {
+            Map<Long, List<Cell>> readers = externalReaders.get(external.sheet);
+            long read = (long) external.row << 32 | external.column;
+            readers.get(read).remove(cell);
+            if(readers.get(read).isEmpty()) {
+                readers.remove(read);
+                if(readers.isEmpty()) {
+                    externalReaders.remove(external.sheet);
+                }
+            }
+        }
+        cell.references = NO_CELLS;
+        cell.slots = NO_SLOTS;
+        cell.ranges = NO_RANGES;
+        cell.externals = NO_EXTERNALS;
+        return previous;
+    }
+
+    // Drops the side-table entry of a cell that no longer needs one
+    private void release(Cell cell) {
+        if(!cell.isNeeded()) {
+            cells.remove((long) cell.row << 32 | cell.column);
+        }
+    }
+
+    private void release(Cell[] candidates) {
+        for(Cell cell : candidates) {
+            release(cell);
+        }
+    }
+}
+
+// Named sheets whose formulas may read each other's cells as Sheet2!B7. A
+// workbook lives in a directory: one file per sheet in Spreadsheet.save's
+// format, and a manifest naming the sheets and the sheets each one reads.
+// Opening one reads only the manifest. A sheet is loaded when one of its
+// cells is first read or edited, or when a sheet it reads changes; its
+// file holds computed values, so loading evaluates nothing. Sheets saved
+// and unchanged since are held softly, so the collector may evict them
+// under memory pressure, and they are loaded again when next needed.
+// Sheets may not read each other in a cycle, even through other sheets.
+// Edits, through the workbook or its sheets, come from one thread at a
+// time.
+class Workbook {
+    private static final String MANIFEST = "workbook.manifest";
+    private static final String EXTENSION = ".sheet";
+
+    private static final class Slot {
+        // Held strongly while it has changes not yet saved
+        private volatile Spreadsheet dirty;
+        private volatile SoftReference<Spreadsheet> clean = new SoftReference<>(null);
+
+        Spreadsheet resident() {
+            Spreadsheet sheet = dirty;
+            return nonNull(sheet) ? sheet : clean.get();
+        }
+    }
+
+    private final Path directory;
+    private final ForkJoinPool pool;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    // Names of the sheets each sheet reads, known without loading it
+    private final ConcurrentHashMap<String, Set<String>> reads = new ConcurrentHashMap<>();
+    // Cells evaluated since the last propagation, by sheet, for sheets some
+    // other sheet reads
+    private final Map<String, List<Long>> changed = new HashMap<>();
+
+    public Workbook(Path directory) {
+        this(directory, null);
+    }
+
+    // Opens the workbook in directory, or starts an empty one if it has no
+    // manifest; sheets recalculate on pool when it is not null
+    public Workbook(Path directory, ForkJoinPool pool) {
+        this.directory = directory;
+        this.pool = pool;
+        Path manifest = directory.resolve(MANIFEST);
+        if(!Files.exists(manifest)) {
+            return;
+        }
+        try {
+            // One line per sheet: its name, a colon, the sheets it reads
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            for(int number = 1; number <= lines.size(); number++) {
+                String line = lines.get(number - 1);
+                if(line.isBlank()) {
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if(colon <= 0) {
+                    throw new IOException("Corrupt workbook manifest " + manifest + " at line " + number + ": "
+                                          + line);
+                }
+                String sheet = line.substring(0, colon);
+                String names = line.substring(colon + 1);
+                slots.put(sheet, new Slot());
+                reads.put(sheet, names.isEmpty() ? Set.of() : Set.of(names.split(",")));
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sheet names are letters, digits and underscores
+    public synchronized Spreadsheet addSheet(String name) {
+        if(name.isEmpty() || !name.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '_')) {
+            throw new IllegalArgumentException("Not a sheet name: " + name);
+        }
+        if(slots.containsKey(name)) {
+            throw new IllegalArgumentException("Sheet already exists: " + name);
+        }
+        Slot slot = new Slot();
+        slot.dirty = new Spreadsheet(pool, this, name);
+        reads.put(name, Set.of());
+        slots.put(name, slot);
+        return slot.dirty;
+    }
+
+    public boolean contains(String name) {
+        return slots.containsKey(name);
+    }
+
+    public Set<String> sheetNames() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+
+    // The sheet, loaded from its file if it is not in memory. Takes only the
+    // slot's lock, as evaluation tasks call it while a writer holds the
+    // workbook's.
+    public Spreadsheet sheet(String name) {
+        Slot slot = slots.get(name);
+        if(slot == null) {
+            throw new IllegalArgumentException("Unknown sheet: " + name);
+        }
+        Spreadsheet sheet = slot.resident();
+        if(nonNull(sheet)) {
+            return sheet;
+        }
+        synchronized(slot) {
+            sheet = slot.resident();
+            if(sheet == null) {
+                sheet = new Spreadsheet(pool, this, name);
+                sheet.read(directory.resolve(name + EXTENSION));
+                slot.clean = new SoftReference<>(sheet);
+            }
+            return sheet;
+        }
+    }
+
+    // reference is Sheet!A1
+    public void setCellContent(String reference, String content) {
+        int bang = reference.indexOf('!');
+        if(bang < 0) {
+            throw new IllegalArgumentException("Not a sheet reference: " + reference);
+        }
+        sheet(reference.substring(0, bang)).setCellContent(reference.substring(bang + 1), content);
+    }
+
+    public Number getCellContent(String reference) {
+        int bang = reference.indexOf('!');
+        if(bang < 0) {
+            throw new IllegalArgumentException("Not a sheet reference: " + reference);
+        }
+        return sheet(reference.substring(0, bang)).getCellContent(reference.substring(bang + 1));
+    }
+
+    // Sheets currently in memory
+    public int residentSheets() {
+        int resident = 0;
+        for(Slot slot : slots.values()) {
+            resident += nonNull(slot.resident()) ? 1 : 0;
+        }
+        return resident;
+    }
+
+    // Writes every changed sheet and the manifest, after which those sheets
+    // may be evicted
+    public synchronized void save() {
+        try {
+            Files.createDirectories(directory);
+            StringBuilder manifest = new StringBuilder();
+            for(Map.Entry<String, Slot> entry : slots.entrySet()) {
+                Slot slot = entry.getValue();
+                Spreadsheet sheet = slot.dirty;
+                if(nonNull(sheet)) {
+                    sheet.save(directory.resolve(entry.getKey() + EXTENSION));
+                    slot.clean = new SoftReference<>(sheet);
+                    slot.dirty = null;
+                }
+                manifest.append(entry.getKey()).append(':')
+                        .append(String.join(",", reads.get(entry.getKey()))).append('\n');
+            }
+            Path temporary = directory.resolve(MANIFEST + ".tmp");
+            Files.writeString(temporary, manifest, StandardCharsets.UTF_8);
+            Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The sheets from from to to over what each sheet reads, joined by
+    // " -> ", or null if to is not reachable
+    synchronized String pathBetween(String from, String to) {
+        if(from.equals(to)) {
+            return to;
+        }
+        for(String next : reads.getOrDefault(from, Set.of())) {
+            String path = pathBetween(next, to);
+            if(nonNull(path)) {
+                return from + " -> " + path;
+            }
+        }
+        return null;
+    }
+
+    // Where a sheet records the cells it evaluates, or null if no other
+    // sheet reads it
+    synchronized List<Long> changes(String name) {
+        return isRead(name) ? changed.computeIfAbsent(name, sheet -> new ArrayList<>()) : null;
+    }
+
+    // Called after an edit of sheet, at coordinate or at -1 for all of it:
+    // refreshes every sheet reading it, directly or not, loading those not
+    // in memory. Sheets are refreshed in topological order, so each one
+    // once and after every sheet it reads.
+    synchronized void propagate(Spreadsheet sheet, long coordinate) {
+        slots.get(sheet.name()).dirty = sheet;
+        reads.put(sheet.name(), sheet.referencedSheets());
+        if(coordinate >= 0 && isRead(sheet.name())) {
+            changed.computeIfAbsent(sheet.name(), name -> new ArrayList<>()).add(coordinate);
+        }
+        try {
+            for(String name : readersInOrder(sheet.name())) {
+                Spreadsheet reader = sheet(name);
+                reader.refresh(changed);
+                slots.get(name).dirty = reader;
+            }
+        } finally {
+            changed.clear();
+        }
+    }
+
+    private boolean isRead(String name) {
+        for(Set<String> names : reads.values()) {
+            if(names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sheets reading name, directly or not, each after the sheets it reads
+    private List<String> readersInOrder(String name) {
+        Set<String> readers = new HashSet<>();
+        List<String> pending = new ArrayList<>(List.of(name));
+        while(!pending.isEmpty()) {
+            String read = pending.remove(pending.size() - 1);
+            for(Map.Entry<String, Set<String>> sheet : reads.entrySet()) {
+                if(sheet.getValue().contains(read) && readers.add(sheet.getKey())) {
+                    pending.add(sheet.getKey());
+                }
+            }
+        }
+        Set<String> order = new LinkedHashSet<>();
+        for(String reader : readers) {
+            addAfterReads(reader, readers, order);
+        }
+        return new ArrayList<>(order);
+    }
+
+    private void addAfterReads(String sheet, Set<String> readers, Set<String> order) {
+        if(order.contains(sheet)) {
+            return;
+        }
+        for(String read : reads.get(sheet)) {
+            if(readers.contains(read)) {
+                addAfterReads(read, readers, order);
+            }
+        }
+        order.add(sheet);
+    }
+}
+
+// Times recalculation of a chain of formulas A1 <- A2 = A1+1 <- ... and
+// prints the cost per cell. Editing A1 re-evaluates the whole chain.
+// Usage: SpreadsheetBenchmark [cells] [iterations]
+class SpreadsheetBenchmark {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "1");
+        for(int i = 2; i <= size; i++) {
+            sheet.setCellContent("A" + i, "A" + (i - 1) + "+1");
+        }
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("A1", String.valueOf(i));
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("A1", String.valueOf(i));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("cells=%d recalculation=%.2f ms/edit %.1f ns/cell (A%d=%d)%n", size,
+                elapsed / 1e6 / iterations, (double) elapsed / iterations / size, size, sheet.getCellContent("A" + size));
+    }
+}
+
+// Times a full recalculation of a wide model, sequentially and on a
+// ForkJoinPool, and checks both agree. Column A holds literals and each
+// cell of the next columns sums two neighbours of the column before, so
+// every column is one level of independent cells.
+// Usage: SpreadsheetParallelBenchmark [rows] [columns] [threads] [iterations]
+class SpreadsheetParallelBenchmark {
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Spreadsheet sequential = build(new Spreadsheet(), rows, columns);
+        Spreadsheet parallel = build(new Spreadsheet(pool), rows, columns);
+        double sequentialMillis = time(sequential, iterations);
+        double parallelMillis = time(parallel, iterations);
+        for(int column = 0; column < columns; column++) {
+            for(int row = 1; row <= rows; row++) {
+                String key = name(column) + row;
+                if(!sequential.getCellContent(key).equals(parallel.getCellContent(key))) {
+                    throw new IllegalStateException("Mismatch at " + key);
+                }
+            }
+        }
+        System.out.printf("cells=%d threads=%d sequential=%.1f ms parallel=%.1f ms speedup=%.2fx%n",
+                (long) rows * columns, threads, sequentialMillis, parallelMillis, sequentialMillis / parallelMillis);
+        pool.shutdown();
+    }
+
+    private static Spreadsheet build(Spreadsheet sheet, int rows, int columns) {
+        for(int row = 1; row <= rows; row++) {
+            sheet.setCellContent("A" + row, String.valueOf(row % 100));
+        }
+        for(int column = 1; column < columns; column++) {
+            String previous = name(column - 1);
+            for(int row = 1; row <= rows; row++) {
+                String below = row < rows ? "+" + previous + (row + 1) : "";
+                sheet.setCellContent(name(column) + row, previous + row + below);
+            }
+        }
+        return sheet;
+    }
+
+    private static double time(Spreadsheet sheet, int iterations) {
+        sheet.recalculate();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            sheet.recalculate();
+        }
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    private static String name(int column) {
+        StringBuilder name = new StringBuilder();
+        for(int c = column + 1; c > 0; c = (c - 1) / 26) {
+            name.append((char) ('A' + (c - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+}
+
+// Times point edits under a SUM, MIN and MAX over one long column, which
+// the column index answers without rescanning the range.
+// Usage: SpreadsheetRangeBenchmark [rows] [iterations]
+class SpreadsheetRangeBenchmark {
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        Spreadsheet sheet = new Spreadsheet();
+        for(int row = 1; row <= rows; row++) {
+            sheet.setCellContent("A" + row, String.valueOf(row % 1000));
+        }
+        sheet.setCellContent("B1", "SUM(A1:A" + rows + ")");
+        sheet.setCellContent("B2", "MIN(A1:A" + rows + ") + MAX(A1:A" + rows + ")");
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("A" + (1 + i % rows), String.valueOf(i % 1000));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("rows=%d edit=%.2f us (B1=%d B2=%d)%n", rows, elapsed / 1e3 / iterations,
+                sheet.getCellContent("B1"), sheet.getCellContent("B2"));
+    }
+}
+
+// Times a CSV import, a binary save and a binary load of a sheet of random
+// integers plus one formula column, printing throughput for each.
+// Usage: SpreadsheetFileBenchmark [rows] [columns] [directory]
+class SpreadsheetFileBenchmark {
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Path directory = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("spreadsheet");
+        Path csv = directory.resolve("bench.csv");
+        Path binary = directory.resolve("bench.sheet");
+        java.util.Random random = new java.util.Random(1);
+        try(java.io.BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            for(int row = 1; row <= rows; row++) {
+                for(int column = 1; column < columns; column++) {
+                    writer.write(Integer.toString(random.nextInt(1_000_000)));
+                    writer.write(',');
+                }
+                writer.write("A" + row + "+B" + row + "\n");
+            }
+        }
+        long cells = (long) rows * columns;
+        long start = System.nanoTime();
+        Spreadsheet sheet = Spreadsheet.importCsv(csv);
+        report("import", cells, Files.size(csv), System.nanoTime() - start);
+        start = System.nanoTime();
+        sheet.save(binary);
+        report("save", cells, Files.size(binary), System.nanoTime() - start);
+        start = System.nanoTime();
+        Spreadsheet loaded = Spreadsheet.load(binary);
+        report("load", cells, Files.size(binary), System.nanoTime() - start);
+        String last = columnKey(columns) + rows;
+        if(!sheet.getCellContent(last).equals(loaded.getCellContent(last))) {
+            throw new IllegalStateException("Loaded sheet differs at " + last);
+        }
+        Files.delete(csv);
+        Files.delete(binary);
+    }
+
+    private static void report(String phase, long cells, long bytes, long nanos) {
+        System.out.printf("%-6s %,d cells %.0f ms %.1f MB/s %.1f M cells/s%n", phase, cells, nanos / 1e6,
+                bytes / 1e6 / (nanos / 1e9), cells / 1e6 / (nanos / 1e9));
+    }
+
+    private static String columnKey(int column) {
+        StringBuilder name = new StringBuilder();
+        for(int c = column; c > 0; c = (c - 1) / 26) {
+            name.append((char) ('A' + (c - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+}
+
+// Times a chain of formulas A2 = A1+1, A3 = A2+1, ... holding LONG, DOUBLE
+// and DECIMAL values, and reports the bytes allocated per evaluated cell,
+// which for LONG and DOUBLE is only the walk's list of cells: no value is
+// boxed. Then times rebuilding the column index under a SUM over one long
+// column, where the block kernel does the work. Compare kernels with
+//   java --add-modules jdk.incubator.vector SpreadsheetNumericBenchmark
+//   java -Dspreadsheet.kernel=scalar SpreadsheetNumericBenchmark
+// Usage: SpreadsheetNumericBenchmark [cells] [rows] [iterations]
+class SpreadsheetNumericBenchmark {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        chain("long", size, iterations, "");
+        chain("double", size, iterations, ".5");
+        chain("decimal", size, iterations, ".5M");
+        Spreadsheet sheet = new Spreadsheet();
+        for(int row = 1; row <= rows; row++) {
+            sheet.setCellContent("A" + row, String.valueOf(row * 1_000_003L));
+        }
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("B1", "SUM(A1:A" + rows + ")");
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            // Relinking the only range drops the index and builds it anew
+            sheet.setCellContent("B1", "SUM(A1:A" + rows + ")");
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("index  kernel=%s build=%.2f ms %.0f M rows/s (B1=%s)%n", Spreadsheet.kernelName(),
+                elapsed / 1e6 / iterations, (double) rows * iterations / (elapsed / 1e3), sheet.getCellContent("B1"));
+    }
+
+    private static void chain(String type, int size, int iterations, String suffix) {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "1" + suffix);
+        for(int i = 2; i <= size; i++) {
+            sheet.setCellContent("A" + i, "A" + (i - 1) + "+1");
+        }
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("A1", i + suffix);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            sheet.setCellContent("A1", i + suffix);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.printf("%-7s %.1f ns/cell %.1f B/cell (A%d=%s)%n", type, (double) elapsed / iterations / size,
+                (double) allocated / iterations / size, size, sheet.getCellContent("A" + size));
+    }
+}
+
+// Runs one writer committing batches of random edits to a large sheet while
+// reader threads read random cells from the latest snapshot, and prints the
+// cost of a commit, the writer's throughput and the readers'. Each commit
+// copies the chunk directories plus the chunks its batch touched.
+// Usage: SpreadsheetSnapshotBenchmark [rows] [columns] [batch] [readers] [seconds]
+class SpreadsheetSnapshotBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int readers = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        Spreadsheet sheet = new Spreadsheet();
+        String[] names = new String[columns];
+        for(int column = 0; column < columns; column++) {
+            names[column] = String.valueOf((char) ('A' + column));
+            for(int row = 1; row <= rows; row++) {
+                sheet.setCellContent(names[column] + row, String.valueOf(row));
+            }
+        }
+        java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.LongAdder reads = new java.util.concurrent.atomic.LongAdder();
+        Thread[] threads = new Thread[readers];
+        for(int i = 0; i < readers; i++) {
+            threads[i] = new Thread(() -> {
+                java.util.Random random = new java.util.Random();
+                while(!stop.get()) {
+                    Spreadsheet.Snapshot snapshot = sheet.snapshot();
+                    for(int read = 0; read < 1000; read++) {
+                        snapshot.getLong(names[random.nextInt(columns)] + (1 + random.nextInt(rows)));
+                    }
+                    reads.add(1000);
+                }
+            });
+            threads[i].start();
+        }
+        java.util.Random random = new java.util.Random(1);
+        long commits = 0;
+        long commitNanos = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        while(System.nanoTime() < end) {
+            for(int edit = 0; edit < batch; edit++) {
+                sheet.setCellContent(names[random.nextInt(columns)] + (1 + random.nextInt(rows)),
+                        String.valueOf(random.nextInt(1000)));
+            }
+            long commitStart = System.nanoTime();
+            sheet.commit();
+            commitNanos += System.nanoTime() - commitStart;
+            commits++;
+        }
+        long elapsed = System.nanoTime() - start;
+        stop.set(true);
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("cells=%d batch=%d commit=%.1f us edits=%.0f/s readers=%d reads=%.1f M/s%n",
+                (long) rows * columns, batch, commitNanos / 1e3 / commits, commits * batch / (elapsed / 1e9),
+                readers, reads.sum() / 1e6 / (elapsed / 1e9));
+    }
+}
+
+// Saves a workbook of N sheets plus a dashboard reading two of them,
+// reopens it, reads the dashboard cell and edits a source sheet, printing
+// timings and how many sheets are resident after each step.
+// Usage: SpreadsheetWorkbookBenchmark [sheets] [rows]
+class SpreadsheetWorkbookBenchmark {
+    public static void main(String[] args) throws IOException {
+        int sheets = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path directory = Files.createTempDirectory("workbook");
+        Workbook workbook = new Workbook(directory);
+        for(int index = 0; index < sheets; index++) {
+            Spreadsheet sheet = workbook.addSheet("Sheet" + index);
+            for(int row = 1; row <= rows; row++) {
+                sheet.setCellContent("A" + row, String.valueOf(row + index));
+            }
+            sheet.setCellContent("B1", "SUM(A1:A" + rows + ")");
+        }
+        // Dashboard reads the totals of two sheets only
+        Spreadsheet dashboard = workbook.addSheet("Dashboard");
+        dashboard.setCellContent("A1", "Sheet0!B1+Sheet" + (sheets - 1) + "!B1");
+        long start = System.nanoTime();
+        workbook.save();
+        long saved = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Workbook reopened = new Workbook(directory);
+        long opened = System.nanoTime() - start;
+        start = System.nanoTime();
+        Number total = reopened.getCellContent("Dashboard!A1");
+        long read = System.nanoTime() - start;
+        int residentAfterRead = reopened.residentSheets();
+        start = System.nanoTime();
+        reopened.setCellContent("Sheet0!A1", "0");
+        long edited = System.nanoTime() - start;
+        System.out.printf("sheets=%d rows=%d save=%d ms open=%.1f ms read=%.1f ms resident=%d edit=%.1f ms "
+                          + "resident=%d total=%s->%s%n", sheets + 1, rows, saved / 1_000_000, opened / 1e6,
+                read / 1e6, residentAfterRead, edited / 1e6, reopened.residentSheets(), total,
+                reopened.getCellContent("Dashboard!A1"));
+    }
 }
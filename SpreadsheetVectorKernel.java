@@ -0,0 +1,61 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Block folds for Spreadsheet's column indexes on the Vector API. Kept out
+// of SpreadSheet.java so the sheet builds without the incubator module:
+// compile and run with --add-modules jdk.incubator.vector to use it, and
+// Spreadsheet falls back to its scalar kernel otherwise.
+class SpreadsheetVectorKernel implements Spreadsheet.BlockKernel {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // Rows of a block, which is a whole number of vectors
+    private static final int ROWS = 64;
+
+    @Override
+    public long sumHighHalves(long[] values, int offset, long mask) {
+        long sum = 0;
+        for(int i = 0; i < ROWS && mask >>> i != 0; i += LANES) {
+            VectorMask<Long> lanes = VectorMask.fromLong(SPECIES, mask >>> i);
+            sum += LongVector.fromArray(SPECIES, values, offset + i)
+                             .lanewise(VectorOperators.ASHR, 32)
+                             .reduceLanes(VectorOperators.ADD, lanes);
+        }
+        return sum;
+    }
+
+    @Override
+    public long sumLowHalves(long[] values, int offset, long mask) {
+        long sum = 0;
+        for(int i = 0; i < ROWS && mask >>> i != 0; i += LANES) {
+            VectorMask<Long> lanes = VectorMask.fromLong(SPECIES, mask >>> i);
+            sum += LongVector.fromArray(SPECIES, values, offset + i)
+                             .and(0xFFFFFFFFL)
+                             .reduceLanes(VectorOperators.ADD, lanes);
+        }
+        return sum;
+    }
+
+    @Override
+    public long min(long[] values, int offset, long mask) {
+        long min = Long.MAX_VALUE;
+        for(int i = 0; i < ROWS && mask >>> i != 0; i += LANES) {
+            VectorMask<Long> lanes = VectorMask.fromLong(SPECIES, mask >>> i);
+            min = Math.min(min, LongVector.fromArray(SPECIES, values, offset + i)
+                                          .reduceLanes(VectorOperators.MIN, lanes));
+        }
+        return min;
+    }
+
+    @Override
+    public long max(long[] values, int offset, long mask) {
+        long max = Long.MIN_VALUE;
+        for(int i = 0; i < ROWS && mask >>> i != 0; i += LANES) {
+            VectorMask<Long> lanes = VectorMask.fromLong(SPECIES, mask >>> i);
+            max = Math.max(max, LongVector.fromArray(SPECIES, values, offset + i)
+                                          .reduceLanes(VectorOperators.MAX, lanes));
+        }
+        return max;
+    }
+}